@@ -0,0 +1,121 @@
+/* ==========================================================
+File:        CliWorker.java
+Description: Runs all wakatime-cli invocations from one long-lived thread.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class CliWorker {
+    private static final int shutdownTimeoutSeconds = 10;
+
+    private static volatile boolean disposed = false;
+    private static ExecutorService executor = null;
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "WakaTime CLI Worker");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * Queues a batch of heartbeats to be sent by wakatime-cli. Batches are sent one at a time in the
+     * order they were queued, so a crashing or slow CLI never runs concurrently with itself. Heartbeats
+     * coalesced into the batch are acknowledged together with it.
+     */
+    public static void sendHeartbeats(final Heartbeat heartbeat, final ArrayList<Heartbeat> extraHeartbeats) {
+        submit(new Runnable() {
+            public void run() {
+                ArrayList<Heartbeat> batch = new ArrayList<Heartbeat>(extraHeartbeats);
+                batch.add(heartbeat);
+                try {
+                    if (!WakaTime.sendHeartbeat(heartbeat, extraHeartbeats)) return;
+                    HeartbeatJournal.ack(batch);
+                    TodayStatsCache.refresh(false);
+                } finally {
+                    // unsent heartbeats stay in the journal and are replayed on the next start
+                    Heartbeat.release(batch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a refresh of today's coding time, which always runs after any heartbeats queued before
+     * it. Only called by TodayStatsCache, which makes sure one refresh is queued at a time. Returns
+     * false when nothing was queued because the worker is disposed.
+     */
+    static boolean refreshToday() {
+        // not worth running on the caller thread while disposing
+        if (disposed) return false;
+        submit(new Runnable() {
+            public void run() {
+                TodayStatsCache.fetch();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits for queued CLI invocations to finish, then stops the worker thread.
+     */
+    public static void shutdown() {
+        ExecutorService current;
+        synchronized (CliWorker.class) {
+            disposed = true;
+            current = executor;
+            executor = null;
+        }
+        if (current == null) return;
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                WakaTime.log.warn("Timed out waiting for wakatime-cli to finish sending heartbeats.");
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void submit(final Runnable task) {
+        Runnable guarded = new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    WakaTime.warnException(e);
+                }
+            }
+        };
+        try {
+            getExecutor().execute(guarded);
+        } catch (RejectedExecutionException e) {
+            // worker was stopped, run on the caller so heartbeats are not lost while disposing
+            WakaTime.log.debug("CLI worker not running, executing on caller thread");
+            guarded.run();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (disposed) throw new RejectedExecutionException("CLI worker disposed");
+        if (executor == null || executor.isShutdown()) {
+            // a single thread which is replaced automatically if it ever dies
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,123 @@
+/* ==========================================================
+File:        ConfigChange.java
+Description: Settings which changed between two reads of a config file.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ConfigChange {
+    private final boolean internal;
+    private final Map<String, Map<String, String>> before;
+    private final Map<String, Map<String, String>> after;
+    // section -> keys added, removed or given a new value
+    private final Map<String, Set<String>> changed;
+
+    private ConfigChange(boolean internal, Map<String, Map<String, String>> before, Map<String, Map<String, String>> after, Map<String, Set<String>> changed) {
+        this.internal = internal;
+        this.before = before;
+        this.after = after;
+        this.changed = changed;
+    }
+
+    /**
+     * Compares two parsed copies of a config file, section name to keys and values.
+     */
+    static ConfigChange diff(boolean internal, Map<String, Map<String, String>> before, Map<String, Map<String, String>> after) {
+        Map<String, Set<String>> changed = new LinkedHashMap<String, Set<String>>();
+        Set<String> sections = new HashSet<String>(before.keySet());
+        sections.addAll(after.keySet());
+        for (String section : sections) {
+            Map<String, String> oldValues = valuesOf(before, section);
+            Map<String, String> newValues = valuesOf(after, section);
+            Set<String> keys = new HashSet<String>(oldValues.keySet());
+            keys.addAll(newValues.keySet());
+            for (String key : keys) {
+                String oldValue = oldValues.get(key);
+                String newValue = newValues.get(key);
+                if (oldValue == null ? newValue == null : oldValue.equals(newValue)) continue;
+                Set<String> changedKeys = changed.get(section);
+                if (changedKeys == null) {
+                    changedKeys = new HashSet<String>();
+                    changed.put(section, changedKeys);
+                }
+                changedKeys.add(key);
+            }
+        }
+        return new ConfigChange(internal, before, after, changed);
+    }
+
+    private static Map<String, String> valuesOf(Map<String, Map<String, String>> sections, String section) {
+        Map<String, String> values = sections.get(section);
+        return values != null ? values : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * True for wakatime-internal.cfg, false for .wakatime.cfg.
+     */
+    public boolean isInternal() {
+        return internal;
+    }
+
+    public boolean isEmpty() {
+        return changed.isEmpty();
+    }
+
+    /**
+     * Returns true when any of the keys in the section was added, removed or changed.
+     */
+    public boolean isChanged(String section, String... keys) {
+        Set<String> changedKeys = changed.get(section.toLowerCase());
+        if (changedKeys == null) return false;
+        for (String key : keys) {
+            if (changedKeys.contains(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true when any key of the section starting with the prefix was added, removed or changed.
+     */
+    public boolean isChangedWithPrefix(String section, String prefix) {
+        Set<String> changedKeys = changed.get(section.toLowerCase());
+        if (changedKeys == null) return false;
+        for (String key : changedKeys) {
+            if (key.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    public String getOldValue(String section, String key) {
+        return valuesOf(before, section.toLowerCase()).get(key);
+    }
+
+    @Nullable
+    public String getNewValue(String section, String key) {
+        return valuesOf(after, section.toLowerCase()).get(key);
+    }
+
+    /**
+     * Lists changed keys without their values, which may hold the api key.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(internal ? "wakatime-internal.cfg" : ".wakatime.cfg");
+        for (Map.Entry<String, Set<String>> entry : changed.entrySet()) {
+            for (String key : entry.getValue()) {
+                sb.append(' ').append(entry.getKey()).append('.').append(key);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,22 @@
+/* ==========================================================
+File:        ConfigChangeListener.java
+Description: Message bus topic for changes to the config files.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.util.messages.Topic;
+
+/**
+ * Published on the application message bus from a pooled thread whenever ConfigFile reads a config
+ * file whose settings differ from the previous read, whether it was changed by this IDE, another IDE
+ * or an external tool.
+ */
+public interface ConfigChangeListener {
+    Topic<ConfigChangeListener> TOPIC = Topic.create("WakaTime config changed", ConfigChangeListener.class);
+
+    void configChanged(ConfigChange change);
+}
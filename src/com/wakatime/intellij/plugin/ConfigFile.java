@@ -8,13 +8,31 @@ Website:     https://wakatime.com/
 
 package com.wakatime.intellij.plugin;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ConfigFile {
     private static final String fileName = ".wakatime.cfg";
@@ -24,8 +42,12 @@ public class ConfigFile {
     private static String _api_key = "";
     private static String _dashboard_url = "";
     private static boolean _usingVaultCmd = false;
+    private static final long statIntervalMillis = 1000;
+    private static final long lockTimeoutMillis = 5000;
+    private static final CachedConfig config = new CachedConfig(false);
+    private static final CachedConfig internalConfig = new CachedConfig(true);
 
-    private static String getConfigFilePath(boolean internal) {
+    static String getConfigFilePath(boolean internal) {
         if (ConfigFile.cachedHomeFolder == null) {
             String wakatimeHome = System.getenv("WAKATIME_HOME");
             if (wakatimeHome != null && !wakatimeHome.trim().isEmpty()) {
@@ -46,119 +68,321 @@ public class ConfigFile {
         return new File(ConfigFile.cachedHomeFolder, fileName).getAbsolutePath();
     }
 
+    /**
+     * Returns the value from the in-memory copy of the config file, which is parsed again only after
+     * the file's modification time or size changed.
+     */
     public static String get(String section, String key, boolean internal) {
-        String file = ConfigFile.getConfigFilePath(internal);
-        String val = null;
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            String currentSection = "";
-            try {
-                String line = br.readLine();
-                while (line != null) {
-                    if (line.trim().startsWith("[") && line.trim().endsWith("]")) {
-                        currentSection = line.trim().substring(1, line.trim().length() - 1).toLowerCase();
-                    } else {
-                        if (section.toLowerCase().equals(currentSection)) {
-                            String[] parts = line.split("=");
-                            if (parts.length == 2 && parts[0].trim().equals(key)) {
-                                val = parts[1].trim();
-                                br.close();
-                                return removeNulls(val);
-                            }
-                        }
-                    }
-                    line = br.readLine();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
+        Snapshot snapshot = (internal ? internalConfig : config).current();
+        Map<String, String> values = snapshot.sections.get(section.toLowerCase());
+        if (values == null) return null;
+        return values.get(key);
+    }
+
+    /**
+     * Reads the config file again now, after it was written or the watcher saw it change, and
+     * publishes any settings which differ from the last read.
+     */
+    public static void reload(boolean internal) {
+        (internal ? internalConfig : config).reload();
+    }
+
+    /**
+     * Immutable parsed contents of one config file, section name to keys and values.
+     */
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.<String, Map<String, String>>emptyMap(), -1, -1);
+
+        final Map<String, Map<String, String>> sections;
+        final long lastModified;
+        final long size;
+
+        Snapshot(Map<String, Map<String, String>> sections, long lastModified, long size) {
+            this.sections = sections;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Holds the latest snapshot of a config file. Reads never lock; at most once per second a reader
+     * checks the file's modification time and size, and parses it again when either changed. That
+     * check is only a fallback for when ConfigWatcher can't watch the config folder.
+     */
+    private static class CachedConfig {
+        private final boolean internal;
+        private volatile Snapshot snapshot = Snapshot.EMPTY;
+        private volatile long checkedAt = 0;
+
+        CachedConfig(boolean internal) {
+            this.internal = internal;
+        }
+
+        Snapshot current() {
+            long now = System.currentTimeMillis();
+            Snapshot current = snapshot;
+            if (now - checkedAt < statIntervalMillis && current != Snapshot.EMPTY) return current;
+            checkedAt = now;
+
+            File file = new File(getConfigFilePath(internal));
+            if (file.lastModified() == current.lastModified && file.length() == current.size) return current;
+            return update(current);
+        }
+
+        void reload() {
+            checkedAt = System.currentTimeMillis();
+            update(snapshot);
+        }
+
+        /**
+         * Parses the file and swaps in the new snapshot unless another thread already did, so each
+         * change is published once.
+         */
+        private Snapshot update(Snapshot expected) {
+            ConfigChange change;
+            synchronized (this) {
+                if (snapshot != expected) return snapshot;
+                File file = new File(getConfigFilePath(internal));
+                Snapshot parsed = parse(file, file.lastModified(), file.length());
+                snapshot = parsed;
+                // the first read of a file is not a change
+                if (expected == Snapshot.EMPTY) return parsed;
+                change = ConfigChange.diff(internal, expected.sections, parsed.sections);
+                if (change.isEmpty()) return parsed;
+            }
+            changed(change);
+            return snapshot;
+        }
+    }
+
+    private static void changed(final ConfigChange change) {
+        if (!change.isInternal() && change.isChanged("settings", "api_key", "api_key_vault_cmd")) {
+            ConfigFile._api_key = "";
+            ConfigFile._usingVaultCmd = false;
+        }
+        if (!change.isInternal() && change.isChanged("settings", "api_url")) {
+            ConfigFile._dashboard_url = "";
+        }
+        final Application app = ApplicationManager.getApplication();
+        if (app == null || app.isDisposed()) return;
+        app.executeOnPooledThread(new Runnable() {
+            public void run() {
                 try {
-                    br.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    WakaTime.log.debug("Config changed: " + change);
+                    app.getMessageBus().syncPublisher(ConfigChangeListener.TOPIC).configChanged(change);
+                } catch (Exception e) {
+                    WakaTime.warnException(e);
                 }
             }
-        } catch (FileNotFoundException e1) { /* ignored */ }
-        return removeNulls(val);
+        });
+    }
+
+    private static Snapshot parse(File file, long lastModified, long size) {
+        Map<String, Map<String, String>> sections = new HashMap<String, Map<String, String>>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            Map<String, String> values = null;
+            String line;
+            while ((line = br.readLine()) != null) {
+                String trimmed = removeNulls(line).trim();
+                if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                    String section = trimmed.substring(1, trimmed.length() - 1).toLowerCase();
+                    values = sections.get(section);
+                    if (values == null) {
+                        values = new HashMap<String, String>();
+                        sections.put(section, values);
+                    }
+                    continue;
+                }
+                if (values == null) continue;
+
+                // split on the first equals sign only, values such as urls or vault commands may contain more
+                int eq = trimmed.indexOf('=');
+                if (eq == -1) continue;
+                String key = trimmed.substring(0, eq).trim();
+                if (!values.containsKey(key)) values.put(key, trimmed.substring(eq + 1).trim());
+            }
+        } catch (FileNotFoundException e) {
+            return new Snapshot(Collections.<String, Map<String, String>>emptyMap(), lastModified, size);
+        } catch (IOException e) {
+            WakaTime.warnException(e);
+        }
+        for (Map.Entry<String, Map<String, String>> entry : sections.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        return new Snapshot(Collections.unmodifiableMap(sections), lastModified, size);
     }
 
     public static void set(String section, String key, boolean internal, String val) {
-        key = removeNulls(key);
-        val = removeNulls(val);
+        update(internal).set(section, key, val).commit();
+    }
 
-        String file = ConfigFile.getConfigFilePath(internal);
-        StringBuilder contents = new StringBuilder();
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            try {
-                String currentSection = "";
-                String line = br.readLine();
-                Boolean found = false;
-                while (line != null) {
-                    line = removeNulls(line);
-                    if (line.trim().startsWith("[") && line.trim().endsWith("]")) {
-                        if (section.toLowerCase().equals(currentSection) && !found) {
-                            contents.append(key + " = " + val + "\n");
-                            found = true;
-                        }
-                        currentSection = line.trim().substring(1, line.trim().length() - 1).toLowerCase();
-                        contents.append(line + "\n");
-                    } else {
-                        if (section.toLowerCase().equals(currentSection)) {
-                            String[] parts = line.split("=");
-                            String currentKey = parts[0].trim();
-                            if (currentKey.equals(key)) {
-                                if (!found) {
-                                    contents.append(key + " = " + val + "\n");
-                                    found = true;
-                                }
-                            } else {
-                                contents.append(line + "\n");
-                            }
-                        } else {
-                            contents.append(line + "\n");
-                        }
+    /**
+     * Starts a batch of changes to one config file, written together by commit().
+     */
+    public static Update update(boolean internal) {
+        return new Update(internal);
+    }
+
+    public static class Update {
+        private final boolean internal;
+        // section -> key -> value, in the order they were set
+        private final Map<String, Map<String, String>> changes = new LinkedHashMap<String, Map<String, String>>();
+
+        private Update(boolean internal) {
+            this.internal = internal;
+        }
+
+        public Update set(String section, String key, String val) {
+            section = removeNulls(section).toLowerCase();
+            Map<String, String> values = changes.get(section);
+            if (values == null) {
+                values = new LinkedHashMap<String, String>();
+                changes.put(section, values);
+            }
+            values.put(removeNulls(key), removeNulls(val));
+            return this;
+        }
+
+        /**
+         * Rewrites the config file with all changes applied. The new contents are written to a temp
+         * file which replaces the config file with an atomic rename, while holding a lock file shared
+         * with other IDE instances.
+         */
+        public void commit() {
+            if (changes.isEmpty()) return;
+            File file = new File(ConfigFile.getConfigFilePath(internal));
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            synchronized (ConfigFile.class) {
+                try (FileChannel lockChannel = FileChannel.open(new File(file.getPath() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = acquireLock(lockChannel);
+                    try {
+                        write(file, apply(file));
+                    } finally {
+                        if (lock != null) lock.release();
                     }
-                    line = br.readLine();
+                } catch (IOException e) {
+                    WakaTime.warnException(e);
                 }
-                if (!found) {
-                    if (!section.toLowerCase().equals(currentSection)) {
-                        contents.append("[" + section.toLowerCase() + "]\n");
+            }
+            reload(internal);
+        }
+
+        private String apply(File file) throws IOException {
+            Map<String, Map<String, String>> remaining = new LinkedHashMap<String, Map<String, String>>();
+            for (Map.Entry<String, Map<String, String>> entry : changes.entrySet()) {
+                remaining.put(entry.getKey(), new LinkedHashMap<String, String>(entry.getValue()));
+            }
+
+            StringBuilder contents = new StringBuilder();
+            String currentSection = "";
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    line = removeNulls(line);
+                    String trimmed = line.trim();
+                    if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                        // keys missing from the section being left are added at its end
+                        appendValues(contents, remaining.remove(currentSection));
+                        currentSection = trimmed.substring(1, trimmed.length() - 1).toLowerCase();
+                        contents.append(line).append("\n");
+                        continue;
                     }
-                    contents.append(key + " = " + val + "\n");
+                    Map<String, String> values = changes.get(currentSection);
+                    int eq = line.indexOf('=');
+                    String key = eq != -1 ? line.substring(0, eq).trim() : null;
+                    if (values == null || key == null || !values.containsKey(key)) {
+                        contents.append(line).append("\n");
+                        continue;
+                    }
+                    // write the new value in place of the first occurrence and drop duplicates
+                    Map<String, String> pending = remaining.get(currentSection);
+                    if (pending != null && pending.containsKey(key)) {
+                        contents.append(key).append(" = ").append(pending.remove(key)).append("\n");
+                    }
+                }
+            } catch (FileNotFoundException e) { /* cannot read config file, so create it */ }
+            appendValues(contents, remaining.remove(currentSection));
+
+            for (Map.Entry<String, Map<String, String>> entry : remaining.entrySet()) {
+                if (entry.getValue().isEmpty()) continue;
+                contents.append("[").append(entry.getKey()).append("]\n");
+                appendValues(contents, entry.getValue());
+            }
+            return contents.toString();
+        }
+
+        private static void appendValues(StringBuilder contents, Map<String, String> values) {
+            if (values == null) return;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                contents.append(entry.getKey()).append(" = ").append(entry.getValue()).append("\n");
+            }
+        }
+
+        private static void write(File file, String contents) throws IOException {
+            // replace the file a symlinked dotfile points to, not the link itself
+            Path target = file.toPath();
+            if (Files.exists(target)) target = target.toRealPath();
+            // created readable by the owner only, since the file may hold the api key
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                    out.write(contents.getBytes(StandardCharsets.UTF_8));
+                    out.getFD().sync();
+                }
+                copyOwnership(target, temp);
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        /**
+         * Gives the new file the permissions and owner of the file it replaces, so a config file
+         * restricted to its owner stays that way.
+         */
+        private static void copyOwnership(Path from, Path to) throws IOException {
+            if (!Files.exists(from)) return;
+            PosixFileAttributeView view = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+            if (view == null) return;
+            PosixFileAttributes attributes = view.readAttributes();
+            Files.setPosixFilePermissions(to, attributes.permissions());
+            if (!attributes.owner().equals(Files.getOwner(to))) {
                 try {
-                    br.close();
+                    Files.setOwner(to, attributes.owner());
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    WakaTime.debugException(e);
                 }
             }
-        } catch (FileNotFoundException e1) {
-
-            // cannot read config file, so create it
-            contents = new StringBuilder();
-            contents.append("[" + section.toLowerCase() + "]\n");
-            contents.append(key + " = " + val + "\n");
         }
 
-        PrintWriter writer = null;
-        File parent = new File(file).getParentFile();
-        if (parent != null && !parent.exists()) {
-            parent.mkdirs();
-        }
-        try {
-            writer = new PrintWriter(file, "UTF-8");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        if (writer != null) {
-            writer.print(contents.toString());
-            writer.close();
+        /**
+         * Waits a few seconds for other processes to finish writing, then writes anyway rather than
+         * losing the change.
+         */
+        @Nullable
+        private static FileLock acquireLock(FileChannel channel) throws IOException {
+            long deadline = System.currentTimeMillis() + lockTimeoutMillis;
+            while (true) {
+                FileLock lock = channel.tryLock();
+                if (lock != null) return lock;
+                if (System.currentTimeMillis() > deadline) {
+                    WakaTime.log.warn("Timed out waiting for config file lock, writing without it.");
+                    return null;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
         }
     }
 
@@ -170,8 +394,9 @@ public class ConfigFile {
             return ConfigFile._api_key;
         }
 
+        // the settings dialog saves "api_key = " when the field is left empty, which reads as ""
         String apiKey = get("settings", "api_key", false);
-        if (apiKey == null) {
+        if (apiKey == null || apiKey.trim().isEmpty()) {
             String vaultCmd = get("settings", "api_key_vault_cmd", false);
             if (vaultCmd != null && !vaultCmd.trim().equals("")) {
                 ConfigFile._usingVaultCmd = true;
@@ -189,7 +414,14 @@ public class ConfigFile {
     }
 
     public static void setApiKey(String apiKey) {
-        set("settings", "api_key", false, apiKey);
+        setApiKey(apiKey, update(false));
+    }
+
+    /**
+     * Saves the api key together with other settings changes in one write.
+     */
+    public static void setApiKey(String apiKey, Update update) {
+        update.set("settings", "api_key", apiKey).commit();
         ConfigFile._api_key = apiKey;
     }
 
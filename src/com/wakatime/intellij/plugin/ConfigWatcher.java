@@ -0,0 +1,121 @@
+/* ==========================================================
+File:        ConfigWatcher.java
+Description: Reloads the config files when they change on disk.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the folders holding .wakatime.cfg and wakatime-internal.cfg, so changes made by other IDEs,
+ * wakatime-cli or provisioning tools reach the plugin right away. The files are watched by folder
+ * because writers replace them with a rename.
+ */
+public class ConfigWatcher {
+    // wait for a burst of events from one write to settle before reading the file
+    private static final long SETTLE_MILLIS = 200;
+
+    private static WatchService watchService;
+    private static Thread thread;
+    private static Path configFile;
+    private static Path internalConfigFile;
+
+    public static synchronized void start() {
+        if (thread != null) return;
+        configFile = new File(ConfigFile.getConfigFilePath(false)).toPath().toAbsolutePath();
+        internalConfigFile = new File(ConfigFile.getConfigFilePath(true)).toPath().toAbsolutePath();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            register(configFile.getParent());
+            register(internalConfigFile.getParent());
+        } catch (IOException e) {
+            WakaTime.log.warn("Unable to watch config files, changes will be noticed within a second of the next read: " + e);
+            stop();
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "WakaTime Config Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                WakaTime.debugException(e);
+            }
+        }
+        watchService = null;
+        thread = null;
+    }
+
+    private static void register(Path folder) throws IOException {
+        // the internal config folder may not exist until wakatime-cli is installed
+        if (folder == null || !folder.toFile().isDirectory()) return;
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    private static void watch() {
+        WatchService service = watchService;
+        if (service == null) return;
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean config = false;
+                boolean internalConfig = false;
+                boolean registerInternal = false;
+                do {
+                    Path folder = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            config = true;
+                            internalConfig = true;
+                            continue;
+                        }
+                        Path path = folder.resolve((Path) event.context());
+                        if (path.equals(configFile)) config = true;
+                        else if (path.equals(internalConfigFile)) internalConfig = true;
+                        else if (path.equals(internalConfigFile.getParent())) registerInternal = true;
+                    }
+                    key.reset();
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                if (registerInternal) {
+                    try {
+                        register(internalConfigFile.getParent());
+                    } catch (IOException e) {
+                        WakaTime.debugException(e);
+                    }
+                    internalConfig = true;
+                }
+                if (config) ConfigFile.reload(false);
+                if (internalConfig) ConfigFile.reload(true);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            WakaTime.warnException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* ==========================================================
+File:        CustomBulkFileListener.java
+Description: Keeps per-file state in sync when files are deleted, moved or renamed.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+public class CustomBulkFileListener implements BulkFileListener {
+    /**
+     * Sends line changes not sent yet for files about to be deleted, while they can still be read.
+     */
+    @Override
+    public void before(@NotNull List<? extends VFileEvent> events) {
+        try {
+            for (VFileEvent event : events) {
+                if (!(event instanceof VFileDeleteEvent)) continue;
+                VirtualFile file = event.getFile();
+                if (file == null) continue;
+                if (!file.isDirectory()) {
+                    WakaTime.sendPendingLineChanges(file, null);
+                    continue;
+                }
+                for (String path : FileActivity.pathsWithLineChanges(file.getPath())) {
+                    VirtualFile child = file.getFileSystem().findFileByPath(path);
+                    if (child != null) WakaTime.sendPendingLineChanges(child, null);
+                }
+            }
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+
+    @Override
+    public void after(@NotNull List<? extends VFileEvent> events) {
+        try {
+            for (VFileEvent event : events) {
+                if (event instanceof VFileDeleteEvent) {
+                    VirtualFile file = event.getFile();
+                    if (file != null) FileActivity.forget(file);
+
+                    // folders need a scan to forget the files inside them, files without an id are keyed by path
+                    if (file == null || file.isDirectory() || !(file instanceof VirtualFileWithId)) {
+                        FileActivity.forgetPath(event.getPath());
+                    }
+                } else if (event instanceof VFileMoveEvent) {
+                    VFileMoveEvent move = (VFileMoveEvent) event;
+                    FileActivity.renamePath(move.getOldPath(), move.getNewPath());
+                } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                    VFilePropertyChangeEvent rename = (VFilePropertyChangeEvent) event;
+                    FileActivity.renamePath(rename.getOldPath(), rename.getNewPath());
+                }
+            }
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/* ==========================================================
+File:        CustomConfigChangeListener.java
+Description: Applies config file changes to the running plugin.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.application.ApplicationManager;
+
+public class CustomConfigChangeListener implements ConfigChangeListener {
+    @Override
+    public void configChanged(ConfigChange change) {
+        try {
+            if (change.isInternal()) return;
+            if (change.isChanged("settings", "debug", "metrics") || change.isChangedWithPrefix("settings", "heartbeat_")) {
+                WakaTime.setupConfigs();
+                WakaTime.setLoggingLevel();
+            }
+            if (change.isChanged("settings", "status_bar_enabled", "api_key", "api_key_vault_cmd", "api_url")) {
+                // stats fetched for the previous account must not wait for the next regular refresh
+                final boolean accountChanged = change.isChanged("settings", "api_key", "api_key_vault_cmd", "api_url");
+                ApplicationManager.getApplication().invokeLater(new Runnable() {
+                    public void run() {
+                        WakaTime.setupStatusBar(accountChanged);
+                    }
+                });
+            }
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
@@ -9,31 +9,104 @@ Website:     https://wakatime.com/
 package com.wakatime.intellij.plugin;
 
 import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.event.BulkAwareDocumentListener;
 import com.intellij.openapi.editor.event.DocumentEvent;
-import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
 
 public class CustomDocumentListener implements BulkAwareDocumentListener.Simple {
+    private static final Key<BulkChange> BULK_CHANGE = Key.create("WakaTime.BulkChange");
+
+    /**
+     * Lines inserted and removed by all changes of one bulk update, only touched on the EDT inside the
+     * write action doing the update.
+     */
+    private static class BulkChange {
+        int added = 0;
+        int removed = 0;
+    }
+
+    @Override
+    public void documentChanged(DocumentEvent documentEvent) {
+        Document document = documentEvent.getDocument();
+        if (!document.isInBulkUpdate()) {
+            documentChangedNonBulk(documentEvent);
+            return;
+        }
+        try {
+            BulkChange bulk = document.getUserData(BULK_CHANGE);
+            if (bulk == null || documentEvent.isWholeTextReplaced()) return;
+            bulk.added += FileActivity.countLines(documentEvent.getNewFragment());
+            bulk.removed += FileActivity.countLines(documentEvent.getOldFragment());
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+
     @Override
     public void documentChangedNonBulk(DocumentEvent documentEvent) {
         // WakaTime.log.debug("documentChangedNonBulk event");
         try {
-            if (!WakaTime.isAppActive()) return;
             Document document = documentEvent.getDocument();
             VirtualFile file = WakaTime.getFile(document);
+            if (documentEvent.isWholeTextReplaced()) {
+                // reloaded from disk, so no lines were typed
+                LineStatsTracker.resync(document);
+            } else {
+                int added = FileActivity.countLines(documentEvent.getNewFragment());
+                int removed = FileActivity.countLines(documentEvent.getOldFragment());
+                LineStatsTracker.documentChanged(document, added, removed);
+                if (file != null) FileActivity.get(file).recordLineChanges(added, removed);
+            }
             if (file == null) return;
+            if (!WakaTime.isAppActive()) return;
             if (documentEvent.getNewFragment().length() == 1) {
                 WakaTime.markFileWithHumanTyping(file);
             }
-            Project project = WakaTime.getProject(document);
-            if (!WakaTime.isProjectInitialized(project)) return;
-            LineStats lineStats = WakaTime.getLineStats(document);
-            WakaTime.appendHeartbeat(file, project, false, lineStats);
+            appendHeartbeat(document, file, false);
         } catch(Exception e) {
             WakaTime.debugException(e);
         }
     }
+
+    @Override
+    public void bulkUpdateStarting(Document document) {
+        // WakaTime.log.debug("bulkUpdateStarting event");
+        try {
+            document.putUserData(BULK_CHANGE, new BulkChange());
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+
+    /**
+     * Reformatting, optimizing imports or replacing across a file changes the document in one bulk
+     * update, which is tracked as a single change with one heartbeat. Its line changes are kept apart
+     * from typed ones, so they skip the paste limit and never count as human line changes.
+     */
+    @Override
+    public void bulkUpdateFinished(Document document) {
+        // WakaTime.log.debug("bulkUpdateFinished event");
+        try {
+            BulkChange bulk = document.getUserData(BULK_CHANGE);
+            document.putUserData(BULK_CHANGE, null);
+            LineStatsTracker.resync(document);
+            VirtualFile file = WakaTime.getFile(document);
+            if (file == null) return;
+            if (bulk != null) FileActivity.get(file).recordBulkLineChanges(bulk.added, bulk.removed);
+            if (!WakaTime.isAppActive()) return;
+            // forced past the throttle so the update's line changes are sent with its own heartbeat
+            appendHeartbeat(document, file, true);
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+
+    private void appendHeartbeat(Document document, VirtualFile file, boolean force) {
+        Project project = WakaTime.getProject(document);
+        if (!WakaTime.isProjectInitialized(project)) return;
+        LineStats lineStats = WakaTime.getLineStats(document);
+        WakaTime.appendHeartbeat(file, project, false, lineStats, force);
+    }
 }
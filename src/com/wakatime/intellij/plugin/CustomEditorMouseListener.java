@@ -8,12 +8,8 @@ Website:     https://wakatime.com/
 
 package com.wakatime.intellij.plugin;
 
-import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.event.EditorMouseEvent;
 import com.intellij.openapi.editor.event.EditorMouseListener;
-import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
 
 public class CustomEditorMouseListener implements EditorMouseListener {
     @Override
@@ -21,17 +17,7 @@ public class CustomEditorMouseListener implements EditorMouseListener {
         // WakaTime.log.debug("mousePressed event");
         try {
             if (!WakaTime.isAppActive()) return;
-            Document document = editorMouseEvent.getEditor().getDocument();
-            VirtualFile file = WakaTime.getFile(document);
-            if (file == null) return;
-            Project project = editorMouseEvent.getEditor().getProject();
-            if (!WakaTime.isProjectInitialized(project)) return;
-            ApplicationManager.getApplication().invokeLater(new Runnable() {
-                public void run() {
-                    LineStats lineStats = WakaTime.getLineStats(document, editorMouseEvent.getEditor());
-                    WakaTime.appendHeartbeat(file, project, false, lineStats);
-                }
-            });
+            EditorActivitySampler.recordActivity(editorMouseEvent.getEditor());
         } catch(Exception e) {
             WakaTime.debugException(e);
         }
@@ -0,0 +1,26 @@
+/* ==========================================================
+File:        CustomFileEditorManagerListener.java
+Description: Sends pending line changes and forgets per-file state when files are closed.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+public class CustomFileEditorManagerListener implements FileEditorManagerListener {
+    @Override
+    public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+        try {
+            WakaTime.sendPendingLineChanges(file, source.getProject());
+            FileActivity.forget(file);
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/* ==========================================================
+File:        CustomProjectManagerListener.java
+Description: Forgets per-file state for a project when it is closed.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManagerListener;
+import org.jetbrains.annotations.NotNull;
+
+public class CustomProjectManagerListener implements ProjectManagerListener {
+    @Override
+    public void projectClosed(@NotNull Project project) {
+        try {
+            String basePath = project.getBasePath();
+            if (basePath != null) FileActivity.forgetPath(basePath);
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
@@ -55,9 +55,26 @@ public class CustomStatusBar implements StatusBarWidgetFactory {
         return true;
     }
 
+    private static Icon lightIcon;
+    private static Icon darkIcon;
+
+    /**
+     * Loaded once per theme instead of on every paint.
+     */
+    private static Icon getThemeIcon() {
+        if (UIUtil.isUnderDarcula()) {
+            if (darkIcon == null) darkIcon = IconLoader.getIcon("status-bar-icon-dark-theme.svg", WakaTime.class);
+            return darkIcon;
+        }
+        if (lightIcon == null) lightIcon = IconLoader.getIcon("status-bar-icon-light-theme.svg", WakaTime.class);
+        return lightIcon;
+    }
+
     public class WakaTimeStatusBarWidget implements StatusBarWidget {
         public final Project project;
         public final StatusBar statusBar;
+        // only touched on the EDT
+        private String lastText = null;
 
         @Contract(pure = true)
         public WakaTimeStatusBarWidget(Project project) {
@@ -78,10 +95,23 @@ public class CustomStatusBar implements StatusBarWidgetFactory {
         }
 
         @Override
-        public void install(@NotNull StatusBar statusBar) { }
+        public void install(@NotNull StatusBar statusBar) {
+            StatusBarUpdater.register(this);
+        }
 
         @Override
-        public void dispose() { }
+        public void dispose() {
+            StatusBarUpdater.unregister(this);
+        }
+
+        /**
+         * Repaints the widget when the text differs from what it last showed. Called on the EDT.
+         */
+        void update(String text) {
+            if (text.equals(lastText) || statusBar == null || project.isDisposed()) return;
+            lastText = text;
+            statusBar.updateWidget(ID());
+        }
 
         private class StatusBarPresenter implements StatusBarWidget.MultipleTextValuesPresentation, StatusBarWidget.Multiframe {
             private final WakaTimeStatusBarWidget widget;
@@ -94,20 +124,23 @@ public class CustomStatusBar implements StatusBarWidgetFactory {
             @Override
             public ListPopup getPopupStep() {
                 WakaTime.openDashboardWebsite();
-                WakaTime.updateStatusBarText();
-                if (widget.statusBar != null) widget.statusBar.updateWidget("WakaTime");
+                TodayStatsCache.refresh(true);
+                StatusBarUpdater.requestUpdate();
                 return null;
             }
 
             @Nullable
             @Override
-            public String getSelectedValue() { return WakaTime.getStatusBarText(); }
+            public String getSelectedValue() {
+                String text = WakaTime.getStatusBarText();
+                widget.lastText = text;
+                return text;
+            }
 
             @Override
             public @Nullable
             Icon getIcon() {
-                String theme = UIUtil.isUnderDarcula() ? "dark" : "light";
-                return IconLoader.getIcon("status-bar-icon-" + theme + "-theme.svg", WakaTime.class);
+                return getThemeIcon();
             }
 
             @Nullable
@@ -8,12 +8,8 @@ Website:     https://wakatime.com/
 
 package com.wakatime.intellij.plugin;
 
-import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.event.VisibleAreaEvent;
 import com.intellij.openapi.editor.event.VisibleAreaListener;
-import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
 
 import java.awt.*;
 
@@ -24,14 +20,7 @@ public class CustomVisibleAreaListener implements VisibleAreaListener {
         try {
             if (!didChange(visibleAreaEvent)) return;
             if (!WakaTime.isAppActive()) return;
-            Document document = visibleAreaEvent.getEditor().getDocument();
-            VirtualFile file = WakaTime.getFile(document);
-            if (file == null) return;
-            Project project = visibleAreaEvent.getEditor().getProject();
-            if (!WakaTime.isProjectInitialized(project)) return;
-            Editor editor = visibleAreaEvent.getEditor();
-            LineStats lineStats = WakaTime.getLineStats(document, editor);
-            WakaTime.appendHeartbeat(file, project, false, lineStats);
+            EditorActivitySampler.recordActivity(visibleAreaEvent.getEditor());
         } catch(Exception e) {
             WakaTime.debugException(e);
         }
@@ -8,31 +8,35 @@ Website:     https://wakatime.com/
 
 package com.wakatime.intellij.plugin;
 
+import com.intellij.openapi.progress.ProgressIndicator;
 import org.jetbrains.annotations.Nullable;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Authenticator;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.net.PasswordAuthentication;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -60,6 +64,7 @@ public class Dependencies {
     private static String originalProxyPort = null;
     private static String githubReleasesUrl = "https://api.github.com/repos/wakatime/wakatime-cli/releases/latest";
     private static String githubDownloadUrl = "https://github.com/wakatime/wakatime-cli/releases/latest/download";
+    private static final int downloadBufferSize = 64 * 1024;
 
     public static String getResourcesLocation() {
         if (Dependencies.resourcesLocation != null) return Dependencies.resourcesLocation;
@@ -98,24 +103,12 @@ public class Dependencies {
         cmds.add(Dependencies.getCLILocation());
         cmds.add("--version");
         try {
-            Process p = Runtime.getRuntime().exec(cmds.toArray(new String[cmds.size()]));
-            BufferedReader stdInput = new BufferedReader(new
-                    InputStreamReader(p.getInputStream()));
-            BufferedReader stdError = new BufferedReader(new
-                    InputStreamReader(p.getErrorStream()));
-            p.waitFor();
-            String output = "";
-            String s;
-            while ((s = stdInput.readLine()) != null) {
-                output += s;
-            }
-            while ((s = stdError.readLine()) != null) {
-                output += s;
-            }
+            ProcessSupervisor.Result result = ProcessSupervisor.run(cmds.toArray(new String[cmds.size()]), null, 30);
+            String output = result.getOutput().replace("\r", "").replace("\n", "");
             WakaTime.log.debug("wakatime-cli local version output: \"" + output + "\"");
-            WakaTime.log.debug("wakatime-cli local version exit code: " + p.exitValue());
+            WakaTime.log.debug("wakatime-cli local version exit code: " + result.exitCode);
 
-            if (p.exitValue() != 0) return true;
+            if (!result.isSuccess()) return true;
 
             // disable updating wakatime-cli when it was built from source
             if (output.trim().equals("<local-build>")) {
@@ -123,7 +116,7 @@ public class Dependencies {
             }
 
             String accessed = ConfigFile.get("internal", "cli_version_last_accessed", true);
-            BigInteger now = WakaTime.getCurrentTimestamp().toBigInteger();
+            BigInteger now = BigInteger.valueOf(Timestamps.nowSeconds());
             if (accessed != null && accessed.trim().equals("true")) {
                 try {
                     BigInteger lastAccessed = new BigInteger(accessed.trim());
@@ -154,12 +147,14 @@ public class Dependencies {
             Matcher m = p.matcher(resp.body);
             if (m.find()) {
                 String cliVersion = m.group(1);
+                ConfigFile.Update update = ConfigFile.update(true);
                 if (resp.lastModified != null) {
-                    ConfigFile.set("internal", "cli_version_last_modified", true, resp.lastModified);
-                    ConfigFile.set("internal", "cli_version", true, cliVersion);
+                    update.set("internal", "cli_version_last_modified", resp.lastModified);
+                    update.set("internal", "cli_version", cliVersion);
                 }
-                BigInteger now = WakaTime.getCurrentTimestamp().toBigInteger();
-                ConfigFile.set("internal", "cli_version_last_accessed", true, now.toString());
+                BigInteger now = BigInteger.valueOf(Timestamps.nowSeconds());
+                update.set("internal", "cli_version_last_accessed", now.toString());
+                update.commit();
                 return cliVersion;
             }
         } catch (Exception e) {
@@ -181,7 +176,11 @@ public class Dependencies {
         return combinePaths(getResourcesLocation(), "wakatime-cli-" + osname() + "-" + architecture() + ext);
     }
 
-    public static void installCLI() {
+    /**
+     * Downloads, verifies and unpacks wakatime-cli, returning false when any step failed or was
+     * canceled. A failed download is continued from where it stopped on the next attempt.
+     */
+    public static boolean installCLI(@Nullable ProgressIndicator indicator) {
         File resourceDir = new File(getResourcesLocation());
         if (!resourceDir.exists()) resourceDir.mkdirs();
 
@@ -190,22 +189,127 @@ public class Dependencies {
         String url = getCLIDownloadUrl();
         String zipFile = combinePaths(getResourcesLocation(), "wakatime-cli.zip");
 
-        if (downloadFile(url, zipFile)) {
+        if (indicator != null) indicator.setText("Downloading wakatime-cli");
+        if (!downloadFile(url, zipFile, indicator)) return false;
+
+        if (indicator != null) {
+            indicator.setText("Verifying wakatime-cli");
+            indicator.setIndeterminate(true);
+        }
+        if (!verifyChecksum(new File(zipFile), getCLIZipName())) {
+            new File(zipFile).delete();
+            return false;
+        }
+
+        // unpack next to the current wakatime-cli, which keeps running until the new one is ready
+        File cli = new File(getCLILocation());
+        File stagingDir = new File(getResourcesLocation(), "wakatime-cli-" + System.currentTimeMillis() + ".staging");
+        try {
+            removeStagingDirs();
+            unzip(zipFile, stagingDir);
+            File staged = new File(stagingDir, cli.getName());
+            if (!isWindows()) {
+                makeExecutable(staged.getPath());
+            }
+            String version = getVersion(staged);
+            if (version == null) {
+                WakaTime.log.warn("Downloaded wakatime-cli does not run, keeping the current version.");
+                return false;
+            }
+            if (!activate(staged, cli)) return false;
+            WakaTime.log.debug("Activated wakatime-cli " + version);
+            File oldZipFile = new File(zipFile);
+            oldZipFile.delete();
+            return true;
+        } catch (IOException e) {
+            WakaTime.log.warn(e);
+            return false;
+        } finally {
+            recursiveDelete(stagingDir);
+        }
+    }
 
-            // Delete old wakatime-cli if it exists
-            File file = new File(getCLILocation());
-            recursiveDelete(file);
+    /**
+     * Runs wakatime-cli --version, returning null when it fails or prints nothing.
+     */
+    @Nullable
+    private static String getVersion(File cli) {
+        if (!cli.isFile()) return null;
+        try {
+            ProcessSupervisor.Result result = ProcessSupervisor.run(new String[]{cli.getAbsolutePath(), "--version"}, null, 30);
+            String output = result.getOutput().replace("\r", "").replace("\n", "").trim();
+            if (!result.isSuccess() || output.isEmpty()) return null;
+            return output;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            WakaTime.warnException(e);
+        }
+        return null;
+    }
 
-            File outputDir = new File(getResourcesLocation());
+    /**
+     * Moves the staged wakatime-cli over the current one with a rename, so callers always run either
+     * the old or the new binary and never a partly written one. The old binary is kept as
+     * wakatime-cli-os-arch.previous and restored when the new one doesn't run from its final path.
+     */
+    private static boolean activate(File staged, File cli) throws IOException {
+        File previous = new File(cli.getPath() + ".previous");
+        if (cli.exists()) {
+            Files.copy(cli.toPath(), previous.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        try {
+            Files.move(staged.toPath(), cli.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Windows can't replace a running executable, but can rename it out of the way
+            WakaTime.log.debug("Unable to replace wakatime-cli in one step: " + e);
+            File retired = new File(cli.getPath() + "." + System.currentTimeMillis() + ".old");
+            if (cli.exists()) Files.move(cli.toPath(), retired.toPath());
             try {
-                unzip(zipFile, outputDir);
-                if (!isWindows()) {
-                    makeExecutable(getCLILocation());
-                }
-                File oldZipFile = new File(zipFile);
-                oldZipFile.delete();
-            } catch (IOException e) {
-                WakaTime.log.warn(e);
+                Files.move(staged.toPath(), cli.toPath());
+            } catch (IOException e2) {
+                if (retired.exists()) Files.move(retired.toPath(), cli.toPath());
+                throw e2;
+            }
+            if (!retired.delete()) retired.deleteOnExit();
+        }
+
+        if (getVersion(cli) != null) return true;
+        WakaTime.log.warn("Installed wakatime-cli does not run, rolling back to the previous version.");
+        if (previous.exists()) copyAtomically(previous, cli);
+        return false;
+    }
+
+    /**
+     * Copies to a temp file beside the target, then renames it over the target.
+     */
+    private static void copyAtomically(File source, File target) throws IOException {
+        File temp = new File(target.getPath() + "." + System.currentTimeMillis() + ".tmp");
+        try {
+            Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Removes folders left behind by installs which were interrupted.
+     */
+    private static void removeStagingDirs() {
+        File[] files = new File(getResourcesLocation()).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().startsWith("wakatime-cli-") && file.getName().endsWith(".staging")) {
+                recursiveDelete(file);
             }
         }
     }
@@ -247,11 +351,69 @@ public class Dependencies {
         }
     }
 
+    private static String getCLIZipName() {
+        return "wakatime-cli-" + osname() + "-" + architecture() + ".zip";
+    }
+
     private static String getCLIDownloadUrl() {
-        return githubDownloadUrl + "/wakatime-cli-" + osname() + "-" + architecture() + ".zip";
+        return githubDownloadUrl + "/" + getCLIZipName();
+    }
+
+    /**
+     * Compares the file with the sha256 published with the release. Releases without a checksums file
+     * are accepted with a warning.
+     */
+    private static boolean verifyChecksum(File file, String name) {
+        String expected = null;
+        Response resp = getUrlAsString(githubDownloadUrl + "/checksums_sha256.txt", null, false);
+        if (resp != null && resp.statusCode == 200) {
+            for (String line : resp.body.split("\n")) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2 && parts[1].replace("*", "").equals(name)) {
+                    expected = parts[0].toLowerCase();
+                    break;
+                }
+            }
+        }
+        if (expected == null) {
+            WakaTime.log.warn("No checksum published for " + name + ", installing it unverified.");
+            return true;
+        }
+        try {
+            String actual = sha256(file);
+            if (actual.equals(expected)) return true;
+            WakaTime.log.warn("Checksum mismatch for " + name + ", expected " + expected + " but downloaded " + actual);
+        } catch (Exception e) {
+            WakaTime.log.warn(e);
+        }
+        return false;
+    }
+
+    private static String sha256(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[downloadBufferSize];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
     }
 
     public static boolean downloadFile(String url, String saveAs) {
+        return downloadFile(url, saveAs, null);
+    }
+
+    /**
+     * Downloads into saveAs.part, which is renamed to saveAs once complete. A part left by an earlier
+     * attempt is continued with a range request if the server still has the same file.
+     */
+    public static boolean downloadFile(String url, String saveAs, @Nullable ProgressIndicator indicator) {
         File outFile = new File(saveAs);
 
         // create output directory if does not exist
@@ -272,52 +434,107 @@ public class Dependencies {
 
         setupProxy();
 
-        ReadableByteChannel rbc = null;
-        FileOutputStream fos = null;
         try {
-            rbc = Channels.newChannel(downloadUrl.openStream());
-            fos = new FileOutputStream(saveAs);
-            fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-            fos.close();
-            teardownProxy();
-            return true;
-        } catch (RuntimeException e) {
-            WakaTime.log.warn(e);
             try {
+                return transfer(downloadUrl, outFile, indicator);
+            } catch (RuntimeException e) {
+                WakaTime.log.warn(e);
                 // try downloading without verifying SSL cert (https://github.com/wakatime/jetbrains-wakatime/issues/46)
                 SSLContext SSL_CONTEXT = SSLContext.getInstance("SSL");
                 SSL_CONTEXT.init(null, new TrustManager[] { new LocalSSLTrustManager() }, null);
                 HttpsURLConnection.setDefaultSSLSocketFactory(SSL_CONTEXT.getSocketFactory());
-                HttpsURLConnection conn = (HttpsURLConnection)downloadUrl.openConnection();
-                conn.setRequestProperty("User-Agent", "github.com/wakatime/jetbrains-wakatime");
-                InputStream inputStream = conn.getInputStream();
-                fos = new FileOutputStream(saveAs);
-                int bytesRead = -1;
-                byte[] buffer = new byte[4096];
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
+                return transfer(downloadUrl, outFile, indicator);
+            }
+        } catch (Exception e) {
+            WakaTime.log.warn(e);
+        } finally {
+            teardownProxy();
+        }
+        return false;
+    }
+
+    private static boolean transfer(URL url, File outFile, @Nullable ProgressIndicator indicator) throws IOException {
+        File partFile = new File(outFile.getPath() + ".part");
+        File validatorFile = new File(outFile.getPath() + ".part.validator");
+        long offset = partFile.exists() ? partFile.length() : 0;
+        String validator = offset > 0 ? readValidator(validatorFile) : null;
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("User-Agent", "github.com/wakatime/jetbrains-wakatime");
+        if (validator != null) {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            // the server sends the whole file instead when it changed since the part was downloaded
+            conn.setRequestProperty("If-Range", validator);
+        }
+        int statusCode = conn.getResponseCode();
+        if (statusCode == 416 && validator != null) {
+            conn.disconnect();
+            partFile.delete();
+            validatorFile.delete();
+            return transfer(url, outFile, indicator);
+        }
+        if (statusCode != 200 && statusCode != 206) {
+            WakaTime.log.warn("Downloading " + url + " failed with status " + statusCode);
+            conn.disconnect();
+            return false;
+        }
+
+        boolean resuming = statusCode == 206;
+        if (resuming) {
+            WakaTime.log.debug("Resuming download of " + url + " at byte " + offset);
+        } else {
+            offset = 0;
+            String newValidator = conn.getHeaderField("ETag");
+            if (newValidator == null) newValidator = conn.getHeaderField("Last-Modified");
+            writeValidator(validatorFile, newValidator);
+        }
+        long length = conn.getContentLengthLong();
+        long total = length >= 0 ? offset + length : -1;
+        if (indicator != null) indicator.setIndeterminate(total <= 0);
+
+        try (InputStream in = conn.getInputStream(); OutputStream out = new FileOutputStream(partFile, resuming)) {
+            byte[] buffer = new byte[downloadBufferSize];
+            long done = offset;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                done += len;
+                if (indicator != null) {
+                    // keep the part to continue from next time
+                    if (indicator.isCanceled()) return false;
+                    if (total > 0) indicator.setFraction((double) done / total);
                 }
-                inputStream.close();
-                fos.close();
-                teardownProxy();
-                return true;
-            } catch (NoSuchAlgorithmException e1) {
-                WakaTime.log.warn(e1);
-            } catch (KeyManagementException e1) {
-                WakaTime.log.warn(e1);
-            } catch (IOException e1) {
-                WakaTime.log.warn(e1);
-            } catch (IllegalArgumentException e1) {
-                WakaTime.log.warn(e1);
-            } catch (Exception e1) {
-                WakaTime.log.warn(e1);
             }
+        }
+        if (total > 0 && partFile.length() != total) {
+            WakaTime.log.warn("Download of " + url + " ended early at " + partFile.length() + " of " + total + " bytes");
+            return false;
+        }
+        Files.move(partFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        validatorFile.delete();
+        return true;
+    }
+
+    @Nullable
+    private static String readValidator(File file) {
+        try {
+            String validator = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            return validator.isEmpty() ? null : validator;
         } catch (IOException e) {
-            WakaTime.log.warn(e);
+            return null;
         }
+    }
 
-        teardownProxy();
-        return false;
+    private static void writeValidator(File file, @Nullable String validator) {
+        try {
+            if (validator == null) {
+                file.delete();
+            } else {
+                Files.write(file.toPath(), validator.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            WakaTime.log.warn(e);
+        }
     }
 
     public static Response getUrlAsString(String url, @Nullable String lastModified, boolean updateLastModified) {
@@ -350,10 +567,7 @@ public class Dependencies {
                 return null;
             }
             InputStream inputStream = downloadUrl.openStream();
-            byte[] buffer = new byte[4096];
-            while (inputStream.read(buffer) != -1) {
-                text.append(new String(buffer, "UTF-8"));
-            }
+            text.append(readAll(inputStream));
             inputStream.close();
             if (updateLastModified && conn.getResponseCode() == 200) responseLastModified = conn.getHeaderField("Last-Modified");
         } catch (RuntimeException e) {
@@ -374,10 +588,7 @@ public class Dependencies {
                     return null;
                 }
                 InputStream inputStream = conn.getInputStream();
-                byte[] buffer = new byte[4096];
-                while (inputStream.read(buffer) != -1) {
-                    text.append(new String(buffer, "UTF-8"));
-                }
+                text.append(readAll(inputStream));
                 inputStream.close();
                 if (updateLastModified && conn.getResponseCode() == 200) responseLastModified = conn.getHeaderField("Last-Modified");
             } catch (NoSuchAlgorithmException e1) {
@@ -403,6 +614,16 @@ public class Dependencies {
         return new Response(statusCode, text.toString(), responseLastModified);
     }
 
+    private static String readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, len);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     /**
      * Configures a proxy if one is set in ~/.wakatime.cfg.
      */
@@ -454,31 +675,29 @@ public class Dependencies {
     private static void unzip(String zipFile, File outputDir) throws IOException {
         if(!outputDir.exists())
             outputDir.mkdirs();
+        String outputPath = outputDir.getCanonicalPath() + File.separator;
+
+        byte[] buffer = new byte[downloadBufferSize];
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile), downloadBufferSize))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                File newFile = new File(outputDir, ze.getName());
+                if (!newFile.getCanonicalPath().startsWith(outputPath)) {
+                    throw new IOException("Zip entry outside of output folder: " + ze.getName());
+                }
 
-        byte[] buffer = new byte[1024];
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
-        ZipEntry ze = zis.getNextEntry();
-
-        while (ze != null) {
-            String fileName = ze.getName();
-            File newFile = new File(outputDir, fileName);
-
-            if (ze.isDirectory()) {
-                newFile.mkdirs();
-            } else {
-                FileOutputStream fos = new FileOutputStream(newFile.getAbsolutePath());
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
+                if (ze.isDirectory()) {
+                    newFile.mkdirs();
+                    continue;
+                }
+                try (OutputStream fos = new FileOutputStream(newFile)) {
+                    int len;
+                    while ((len = zis.read(buffer)) > 0) {
+                        fos.write(buffer, 0, len);
+                    }
                 }
-                fos.close();
             }
-
-            ze = zis.getNextEntry();
         }
-
-        zis.closeEntry();
-        zis.close();
     }
 
     private static void recursiveDelete(File path) {
@@ -569,13 +788,16 @@ public class Dependencies {
         if (isDirectory(sourceLink)) recursiveDelete(sourceLink);
         if (!isWindows()) {
             if (!isSymLink(sourceLink)) {
-                recursiveDelete(sourceLink);
+                // replace an existing copy with the link in one rename, so the path never goes missing
+                File tempLink = new File(source + "." + System.currentTimeMillis() + ".tmp");
                 try {
-                    Files.createSymbolicLink(sourceLink.toPath(), new File(destination).toPath());
+                    Files.createSymbolicLink(tempLink.toPath(), new File(destination).toPath());
+                    moveAtomically(tempLink, sourceLink);
                 } catch (Exception e) {
                     WakaTime.warnException(e);
+                    tempLink.delete();
                     try {
-                        Files.copy(new File(destination).toPath(), sourceLink.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        copyAtomically(new File(destination), sourceLink);
                     } catch (Exception ex) {
                         WakaTime.warnException(ex);
                     }
@@ -583,7 +805,7 @@ public class Dependencies {
             }
         } else {
             try {
-                Files.copy(new File(destination).toPath(), sourceLink.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copyAtomically(new File(destination), sourceLink);
             } catch (Exception e) {
                 WakaTime.warnException(e);
             }
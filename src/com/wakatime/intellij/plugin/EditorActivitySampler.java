@@ -0,0 +1,86 @@
+/* ==========================================================
+File:        EditorActivitySampler.java
+Description: Turns bursts of editor events into one heartbeat sample per editor.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caret, mouse and scroll listeners only record that an editor was active. At most one sample per
+ * editor is pending at a time, and it runs on the EDT no more than once per sampling window, so the
+ * work done on the EDT stays the same no matter how fast events arrive.
+ */
+public class EditorActivitySampler {
+    private static final long SAMPLE_WINDOW_MILLIS = 1000;
+    private static final Key<Activity> ACTIVITY = Key.create("WakaTime.EditorActivity");
+
+    private static class Activity {
+        volatile long lastActiveAt = 0;
+        volatile long lastSampledAt = 0;
+        final AtomicBoolean pending = new AtomicBoolean(false);
+    }
+
+    /**
+     * Records activity in the editor, scheduling a sample unless one is already pending.
+     * Called from editor listeners, which run on the EDT.
+     */
+    public static void recordActivity(final Editor editor) {
+        Activity activity = editor.getUserData(ACTIVITY);
+        if (activity == null) {
+            activity = new Activity();
+            editor.putUserData(ACTIVITY, activity);
+        }
+        long now = System.currentTimeMillis();
+        activity.lastActiveAt = now;
+        if (!activity.pending.compareAndSet(false, true)) return;
+
+        final Activity a = activity;
+        final Runnable sample = new Runnable() {
+            public void run() {
+                sample(editor, a);
+            }
+        };
+        long delay = a.lastSampledAt + SAMPLE_WINDOW_MILLIS - now;
+        if (delay <= 0) {
+            ApplicationManager.getApplication().invokeLater(sample);
+        } else {
+            WakaTime.scheduler.schedule(new Runnable() {
+                public void run() {
+                    ApplicationManager.getApplication().invokeLater(sample);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void sample(Editor editor, Activity activity) {
+        // events arriving from here on schedule the next sample
+        activity.pending.set(false);
+        activity.lastSampledAt = System.currentTimeMillis();
+        try {
+            if (editor.isDisposed()) return;
+            Document document = editor.getDocument();
+            VirtualFile file = WakaTime.getFile(document);
+            if (file == null) return;
+            Project project = editor.getProject();
+            if (!WakaTime.isProjectInitialized(project)) return;
+            if (!WakaTime.shouldSendHeartbeat(file, project, activity.lastActiveAt)) return;
+            LineStats lineStats = WakaTime.getLineStats(document, editor);
+            WakaTime.appendHeartbeat(file, project, false, lineStats);
+        } catch(Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
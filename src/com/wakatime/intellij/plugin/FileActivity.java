@@ -0,0 +1,300 @@
+/* ==========================================================
+File:        FileActivity.java
+Description: Line stats and human typing state remembered per file.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.util.containers.ConcurrentIntObjectMap;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One record per file, looked up by the file's id so paths are not hashed on every event. Each record
+ * guards its own fields, so listeners working on different files never wait on each other.
+ */
+public class FileActivity {
+    private static final int MAX_FILES = 1000;
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TYPED_LINES = 50;
+
+    private static final ConcurrentIntObjectMap<FileActivity> byId = ContainerUtil.createConcurrentIntObjectMap();
+    // files without an id, like in-memory or remote files, are keyed by path instead
+    private static final ConcurrentHashMap<String, FileActivity> byPath = new ConcurrentHashMap<String, FileActivity>();
+    private static final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    private final int id;
+    // changes when the file or a folder above it is renamed or moved
+    private volatile String path;
+    private volatile long lastUsedAt;
+
+    private int lineCount = UNKNOWN;
+    private int lineNumber = UNKNOWN;
+    private int cursorPosition = UNKNOWN;
+    private long updatedAt = 0;
+    private int lineAdditions = 0;
+    private int lineDeletions = 0;
+    private boolean hasHumanTyping = false;
+    // lines changed by reformatting and other bulk updates, never counted as typed
+    private int bulkAdditions = 0;
+    private int bulkDeletions = 0;
+
+    private FileActivity(int id, String path) {
+        this.id = id;
+        this.path = path;
+        this.lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the record for the file, creating it when missing.
+     */
+    @NotNull
+    public static FileActivity get(@NotNull VirtualFile file) {
+        FileActivity activity = find(file);
+        if (activity != null) return activity;
+
+        FileActivity created;
+        if (file instanceof VirtualFileWithId) {
+            int fileId = ((VirtualFileWithId) file).getId();
+            created = new FileActivity(fileId, file.getPath());
+            activity = byId.putIfAbsent(fileId, created);
+        } else {
+            created = new FileActivity(UNKNOWN, file.getPath());
+            activity = byPath.putIfAbsent(created.path, created);
+        }
+        if (activity != null) return activity;
+
+        if (byId.size() + byPath.size() > MAX_FILES) evictLeastRecentlyUsed();
+        return created;
+    }
+
+    @Nullable
+    public static FileActivity find(@NotNull VirtualFile file) {
+        FileActivity activity;
+        if (file instanceof VirtualFileWithId) {
+            activity = byId.get(((VirtualFileWithId) file).getId());
+        } else {
+            activity = byPath.get(file.getPath());
+        }
+        if (activity != null) activity.lastUsedAt = System.currentTimeMillis();
+        return activity;
+    }
+
+    public static void forget(@NotNull VirtualFile file) {
+        if (file instanceof VirtualFileWithId) {
+            byId.remove(((VirtualFileWithId) file).getId());
+        } else {
+            byPath.remove(file.getPath());
+        }
+    }
+
+    /**
+     * Forgets the file at this path and every file inside it when it's a folder.
+     */
+    public static void forgetPath(@NotNull String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (FileActivity activity : byId.values()) {
+            if (activity.path.equals(path) || activity.path.startsWith(prefix)) byId.remove(activity.id, activity);
+        }
+        for (FileActivity activity : byPath.values()) {
+            if (activity.path.equals(path) || activity.path.startsWith(prefix)) byPath.remove(activity.path, activity);
+        }
+    }
+
+    /**
+     * Returns the paths of files at or inside this path which have line changes not sent yet.
+     */
+    public static List<String> pathsWithLineChanges(@NotNull String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        List<String> paths = new ArrayList<String>();
+        for (FileActivity activity : byId.values()) {
+            if ((activity.path.equals(path) || activity.path.startsWith(prefix)) && activity.hasLineChanges()) paths.add(activity.path);
+        }
+        for (FileActivity activity : byPath.values()) {
+            if ((activity.path.equals(path) || activity.path.startsWith(prefix)) && activity.hasLineChanges()) paths.add(activity.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Updates the paths of records for a file or folder which was renamed or moved. Records of files
+     * with an id keep their id, so only files without one are keyed again.
+     */
+    public static void renamePath(@NotNull String oldPath, @NotNull String newPath) {
+        String prefix = oldPath.endsWith("/") ? oldPath : oldPath + "/";
+        for (FileActivity activity : byId.values()) {
+            String path = activity.path;
+            if (path.equals(oldPath) || path.startsWith(prefix)) activity.path = newPath + path.substring(oldPath.length());
+        }
+        for (FileActivity activity : byPath.values()) {
+            String path = activity.path;
+            if (!path.equals(oldPath) && !path.startsWith(prefix)) continue;
+            if (!byPath.remove(path, activity)) continue;
+            activity.path = newPath + path.substring(oldPath.length());
+            byPath.putIfAbsent(activity.path, activity);
+        }
+    }
+
+    private static void evictLeastRecentlyUsed() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            // sort copies of the times, since find() keeps updating lastUsedAt on other threads
+            List<UsedAt> all = new ArrayList<UsedAt>();
+            for (FileActivity activity : byId.values()) all.add(new UsedAt(activity));
+            for (FileActivity activity : byPath.values()) all.add(new UsedAt(activity));
+            all.sort(Comparator.comparingLong(u -> u.lastUsedAt));
+
+            // evict down to three quarters of the limit so the next sort is far away
+            int remove = all.size() - MAX_FILES * 3 / 4;
+            for (int i = 0; i < remove; i++) {
+                FileActivity activity = all.get(i).activity;
+                if (activity.id != UNKNOWN) {
+                    byId.remove(activity.id, activity);
+                } else {
+                    byPath.remove(activity.path, activity);
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class UsedAt {
+        final long lastUsedAt;
+        final FileActivity activity;
+
+        UsedAt(FileActivity activity) {
+            this.lastUsedAt = activity.lastUsedAt;
+            this.activity = activity;
+        }
+    }
+
+    public synchronized void saveLineStats(@NotNull LineStats lineStats) {
+        lineCount = lineStats.lineCount;
+        lineNumber = lineStats.lineNumber != null ? lineStats.lineNumber : UNKNOWN;
+        cursorPosition = lineStats.cursorPosition != null ? lineStats.cursorPosition : UNKNOWN;
+        updatedAt = lineStats.updatedAt != null ? lineStats.updatedAt : System.currentTimeMillis();
+    }
+
+    @Nullable
+    public synchronized LineStats getLineStats() {
+        if (lineCount == UNKNOWN) return null;
+        LineStats lineStats = new LineStats();
+        lineStats.lineCount = lineCount;
+        if (lineNumber != UNKNOWN) lineStats.lineNumber = lineNumber;
+        if (cursorPosition != UNKNOWN) lineStats.cursorPosition = cursorPosition;
+        lineStats.updatedAt = updatedAt;
+        return lineStats;
+    }
+
+    public synchronized void markHumanTyping() {
+        hasHumanTyping = true;
+    }
+
+    /**
+     * Adds the lines inserted and removed by one document change. A single change inserting many lines
+     * is a paste or generated code, not typing, so its additions are not counted, but lines it replaced
+     * were still removed.
+     */
+    public synchronized void recordLineChanges(int added, int removed) {
+        if (added <= MAX_TYPED_LINES) lineAdditions += added;
+        lineDeletions += removed;
+    }
+
+    /**
+     * Returns true when typed line changes are waiting for the next heartbeat.
+     */
+    public synchronized boolean hasLineChanges() {
+        return (hasHumanTyping && (lineAdditions != 0 || lineDeletions != 0)) || bulkAdditions != 0 || bulkDeletions != 0;
+    }
+
+    /**
+     * Adds the lines inserted and removed by a whole bulk update. These are not typing, so neither the
+     * paste limit nor the human typing flag apply.
+     */
+    public synchronized void recordBulkLineChanges(int added, int removed) {
+        bulkAdditions += added;
+        bulkDeletions += removed;
+    }
+
+    /**
+     * Returns the line changes since the last call and resets them, or null when there were none. Lines
+     * changed by single edits only count when a human typed in the file, bulk updates always count but
+     * never as human line changes.
+     */
+    @Nullable
+    public synchronized LineChanges popLineChanges() {
+        LineChanges changes = null;
+        if (hasHumanTyping) {
+            changes = new LineChanges(true, lineAdditions, lineDeletions, bulkAdditions, bulkDeletions);
+        } else if (bulkAdditions != 0 || bulkDeletions != 0) {
+            changes = new LineChanges(false, 0, 0, bulkAdditions, bulkDeletions);
+        }
+        lineAdditions = 0;
+        lineDeletions = 0;
+        hasHumanTyping = false;
+        bulkAdditions = 0;
+        bulkDeletions = 0;
+        return changes;
+    }
+
+    /**
+     * Puts back line changes returned by popLineChanges() which could not be sent, so they go out with
+     * the next heartbeat instead.
+     */
+    public synchronized void restoreLineChanges(LineChanges changes) {
+        if (changes.humanTyping) {
+            hasHumanTyping = true;
+            lineAdditions += changes.typedAdditions;
+            lineDeletions += changes.typedDeletions;
+        }
+        bulkAdditions += changes.bulkAdditions;
+        bulkDeletions += changes.bulkDeletions;
+    }
+
+    public static int countLines(CharSequence fragment) {
+        int lines = 0;
+        final int len = fragment.length();
+        for (int i = 0; i < len; i++) {
+            if (fragment.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    public static class LineChanges {
+        public final int additions;
+        public final int deletions;
+        // net lines typed by a human, excluding bulk updates
+        public final int humanLineChanges;
+
+        // kept apart so the changes can be restored exactly
+        private final boolean humanTyping;
+        private final int typedAdditions;
+        private final int typedDeletions;
+        private final int bulkAdditions;
+        private final int bulkDeletions;
+
+        LineChanges(boolean humanTyping, int typedAdditions, int typedDeletions, int bulkAdditions, int bulkDeletions) {
+            this.humanTyping = humanTyping;
+            this.typedAdditions = typedAdditions;
+            this.typedDeletions = typedDeletions;
+            this.bulkAdditions = bulkAdditions;
+            this.bulkDeletions = bulkDeletions;
+            this.additions = typedAdditions + bulkAdditions;
+            this.deletions = typedDeletions + bulkDeletions;
+            this.humanLineChanges = typedAdditions - typedDeletions;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* ==========================================================
+File:        FlushScheduler.java
+Description: Decides when queued heartbeats are sent to wakatime-cli.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes every interval while there is activity, doubling the interval up to a maximum while the queue
+ * stays empty. A write heartbeat flushes after a short delay, and a large queue flushes right away.
+ */
+public class FlushScheduler {
+    public static final int DEFAULT_INTERVAL_SECONDS = 30;
+    public static final int DEFAULT_MAX_INTERVAL_SECONDS = 10 * 60;
+    public static final int DEFAULT_WRITE_DELAY_SECONDS = 2;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    private final ScheduledExecutorService executor;
+    private final Callable<Boolean> flush;
+
+    private long intervalMillis = DEFAULT_INTERVAL_SECONDS * 1000L;
+    private long maxIntervalMillis = DEFAULT_MAX_INTERVAL_SECONDS * 1000L;
+    private long writeDelayMillis = DEFAULT_WRITE_DELAY_SECONDS * 1000L;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+
+    private long currentIntervalMillis = intervalMillis;
+    private ScheduledFuture<?> next = null;
+    private long nextAt = 0;
+    private boolean stopped = false;
+
+    /**
+     * @param flush sends queued heartbeats, returning false when there was nothing to send
+     */
+    public FlushScheduler(ScheduledExecutorService executor, Callable<Boolean> flush) {
+        this.executor = executor;
+        this.flush = flush;
+    }
+
+    public synchronized void configure(int intervalSeconds, int maxIntervalSeconds, int writeDelaySeconds, int batchSize, int batchBytes) {
+        this.intervalMillis = Math.max(1, intervalSeconds) * 1000L;
+        this.maxIntervalMillis = Math.max(this.intervalMillis, maxIntervalSeconds * 1000L);
+        this.writeDelayMillis = Math.max(0, writeDelaySeconds) * 1000L;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchBytes = Math.max(1024, batchBytes);
+        this.currentIntervalMillis = this.intervalMillis;
+        if (next != null) schedule(intervalMillis, true);
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        currentIntervalMillis = intervalMillis;
+        schedule(intervalMillis, true);
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (next != null) next.cancel(false);
+        next = null;
+    }
+
+    /**
+     * Called after a heartbeat was queued, to flush early or end an idle backoff.
+     */
+    public synchronized void onHeartbeatQueued(boolean isWrite, int queueSize, long queueBytes) {
+        if (stopped) return;
+        currentIntervalMillis = intervalMillis;
+        if (WakaTime.READY && (queueSize >= batchSize || queueBytes >= batchBytes)) {
+            schedule(0, false);
+        } else if (isWrite) {
+            schedule(writeDelayMillis, false);
+        } else {
+            schedule(intervalMillis, false);
+        }
+    }
+
+    /**
+     * Schedules the next flush, keeping an already scheduled one if it runs sooner unless replace is set.
+     */
+    private void schedule(long delayMillis, boolean replace) {
+        if (stopped) return;
+        long at = System.currentTimeMillis() + delayMillis;
+        if (next != null && !next.isDone()) {
+            if (!replace && nextAt <= at) return;
+            next.cancel(false);
+        }
+        nextAt = at;
+        next = executor.schedule(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        synchronized (this) {
+            // heartbeats queued while flushing schedule a new run instead of replacing this one
+            next = null;
+        }
+        boolean sent = false;
+        try {
+            sent = flush.call();
+        } catch (Exception e) {
+            WakaTime.warnException(e);
+        }
+        synchronized (this) {
+            if (sent) {
+                currentIntervalMillis = intervalMillis;
+            } else {
+                currentIntervalMillis = Math.min(currentIntervalMillis * 2, maxIntervalMillis);
+            }
+            schedule(currentIntervalMillis, false);
+        }
+    }
+}
@@ -8,19 +8,112 @@ Website:     https://wakatime.com/
 
 package com.wakatime.intellij.plugin;
 
-import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Numbers are primitives with NONE meaning not set, and the timestamp is in microseconds since the
+ * epoch. Instances are recycled through obtain() and release() once wakatime-cli is done with them.
+ */
 public class Heartbeat {
+    public static final int NONE = -1;
+    public static final long NO_SEQUENCE = -1;
+    private static final long[] NO_MERGED = new long[0];
+
+    private static final int POOL_SIZE = 256;
+    private static final int MAX_INTERNED = 1000;
+    private static final ArrayBlockingQueue<Heartbeat> pool = new ArrayBlockingQueue<Heartbeat>(POOL_SIZE);
+    private static final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<String, String>();
+
     public String entity;
     public String localFile;
-    public Integer lineCount;
-    public Integer lineNumber;
-    public Integer cursorPosition;
-    public Integer humanLineChanges;
-    public BigDecimal timestamp;
-    public Boolean isWrite;
-    public Boolean isUnsavedFile;
+    public int lineCount = NONE;
+    public int lineNumber = NONE;
+    public int cursorPosition = NONE;
+    public int humanLineChanges = 0;
+    public int lineAdditions = 0;
+    public int lineDeletions = 0;
+    public long timestamp;
+    public boolean isWrite;
+    public boolean isUnsavedFile;
     public String project;
     public String language;
-    public Boolean isBuilding;
+    public boolean isBuilding;
+    public long sequence = NO_SEQUENCE;
+    // journal sequences of heartbeats merged into this one, which are acknowledged together with it
+    public long[] mergedSequences = NO_MERGED;
+    public int mergedCount = 0;
+
+    /**
+     * Returns a cleared heartbeat, reusing a released one when available.
+     */
+    public static Heartbeat obtain() {
+        Heartbeat h = pool.poll();
+        return h != null ? h : new Heartbeat();
+    }
+
+    /**
+     * Returns heartbeats to the pool. They must not be used by the caller afterwards.
+     */
+    public static void release(Iterable<Heartbeat> heartbeats) {
+        for (Heartbeat h : heartbeats) {
+            h.clear();
+            if (!pool.offer(h)) return;
+        }
+    }
+
+    /**
+     * Returns a shared instance of a project name or language, so queued heartbeats don't each keep
+     * their own copy of the same few strings.
+     */
+    public static String intern(String value) {
+        if (value == null) return null;
+        String existing = interned.get(value);
+        if (existing != null) return existing;
+        if (interned.size() >= MAX_INTERNED) interned.clear();
+        existing = interned.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * Adds the line changes of a heartbeat being coalesced away, and takes over its journal records so
+     * they are only acknowledged once this heartbeat is.
+     */
+    public void merge(Heartbeat other) {
+        humanLineChanges += other.humanLineChanges;
+        lineAdditions += other.lineAdditions;
+        lineDeletions += other.lineDeletions;
+        if (other.sequence != NO_SEQUENCE) addMergedSequence(other.sequence);
+        for (int i = 0; i < other.mergedCount; i++) {
+            addMergedSequence(other.mergedSequences[i]);
+        }
+    }
+
+    private void addMergedSequence(long merged) {
+        if (mergedCount == mergedSequences.length) {
+            mergedSequences = Arrays.copyOf(mergedSequences, Math.max(4, mergedCount * 2));
+        }
+        mergedSequences[mergedCount++] = merged;
+    }
+
+    private void clear() {
+        entity = null;
+        localFile = null;
+        lineCount = NONE;
+        lineNumber = NONE;
+        cursorPosition = NONE;
+        humanLineChanges = 0;
+        lineAdditions = 0;
+        lineDeletions = 0;
+        timestamp = 0;
+        isWrite = false;
+        isUnsavedFile = false;
+        project = null;
+        language = null;
+        isBuilding = false;
+        sequence = NO_SEQUENCE;
+        mergedSequences = NO_MERGED;
+        mergedCount = 0;
+    }
 }
@@ -0,0 +1,79 @@
+/* ==========================================================
+File:        HeartbeatCoalescer.java
+Description: Merges redundant heartbeats for the same entity before sending.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Within every run of consecutive heartbeats for the same entity, project and language, keeps the
+ * first and last heartbeat and enough in between that kept heartbeats are at most one window apart,
+ * plus every write heartbeat. A heartbeat for another entity ends the run, because removing anything
+ * across it would move the time in between to the other entity. Removed heartbeats are merged into
+ * the next heartbeat of their run, so totals and coding time are unchanged and their journal records
+ * are only acknowledged once that heartbeat is sent.
+ */
+public class HeartbeatCoalescer {
+
+    /**
+     * Removes redundant heartbeats from the collection, keeping the order of the rest, and returns
+     * the removed heartbeats. The window is in microseconds, like heartbeat timestamps.
+     */
+    public static List<Heartbeat> coalesce(Collection<Heartbeat> heartbeats, long windowMicros) {
+        Set<Heartbeat> redundant = Collections.newSetFromMap(new IdentityHashMap<Heartbeat, Boolean>());
+        List<Heartbeat> run = new ArrayList<Heartbeat>();
+        for (Heartbeat h : heartbeats) {
+            if (!run.isEmpty() && !isSameEntity(run.get(0), h)) {
+                coalesceRun(run, windowMicros, redundant);
+                run.clear();
+            }
+            run.add(h);
+        }
+        coalesceRun(run, windowMicros, redundant);
+        if (redundant.isEmpty()) return new ArrayList<Heartbeat>();
+
+        List<Heartbeat> removed = new ArrayList<Heartbeat>(redundant.size());
+        for (Heartbeat h : heartbeats) {
+            if (redundant.contains(h)) removed.add(h);
+        }
+        heartbeats.removeAll(redundant);
+        return removed;
+    }
+
+    private static void coalesceRun(List<Heartbeat> run, long windowMicros, Set<Heartbeat> redundant) {
+        if (run.size() < 3) return;
+        Heartbeat kept = null;
+        for (int i = 0; i < run.size(); i++) {
+            Heartbeat h = run.get(i);
+            Heartbeat next = i + 1 < run.size() ? run.get(i + 1) : null;
+            if (kept != null && next != null && isRedundant(h) && next.timestamp - kept.timestamp <= windowMicros) {
+                next.merge(h);
+                redundant.add(h);
+                continue;
+            }
+            kept = h;
+        }
+    }
+
+    private static boolean isSameEntity(Heartbeat a, Heartbeat b) {
+        return a.entity.equals(b.entity) && equal(a.project, b.project) && equal(a.language, b.language);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean isRedundant(Heartbeat h) {
+        return !h.isWrite && h.localFile == null;
+    }
+}
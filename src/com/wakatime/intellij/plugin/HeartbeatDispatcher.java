@@ -0,0 +1,222 @@
+/* ==========================================================
+File:        HeartbeatDispatcher.java
+Description: Hands heartbeat events from listeners to one dispatcher thread.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Listeners on any thread publish events into a fixed ring of pre-allocated slots by claiming a
+ * sequence with compare-and-set, without locking or submitting tasks. A single dispatcher thread
+ * turns published slots into heartbeats and hands them on in batches.
+ */
+public class HeartbeatDispatcher {
+    private static final int CAPACITY = 1024; // must be a power of two
+    private static final int MAX_BATCH = 256;
+    private static final int shutdownTimeoutSeconds = 10;
+
+    private final Slot[] slots = new Slot[CAPACITY];
+    // slot i is free for the producer claiming sequence s when it holds s, and readable when it holds s + 1
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private long head = 0; // only used by the dispatcher thread
+
+    private final Consumer<List<Heartbeat>> sink;
+    private volatile Thread thread = null;
+    private volatile boolean sleeping = false;
+    private volatile boolean running = false;
+
+    private static class Slot {
+        VirtualFile file;
+        String entity;
+        long timestamp;
+        boolean isWrite;
+        boolean isBuilding;
+        String project;
+        String language;
+        String localFile;
+        int lineCount;
+        int lineNumber;
+        int cursorPosition;
+        int lineAdditions;
+        int lineDeletions;
+        int humanLineChanges;
+        boolean hasLineChanges;
+    }
+
+    /**
+     * @param sink receives each batch of heartbeats on the dispatcher thread, and must not keep the list
+     */
+    public HeartbeatDispatcher(Consumer<List<Heartbeat>> sink) {
+        this.sink = sink;
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            published.set(i, i);
+        }
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "WakaTime Heartbeat Dispatcher");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the dispatcher thread after it handed on every event published before this call.
+     */
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            t = thread;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(shutdownTimeoutSeconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publishes an event, returning false when the ring is full and the event was dropped.
+     */
+    public boolean publish(VirtualFile file, String entity, long timestamp, boolean isWrite, boolean isBuilding,
+                           @Nullable String project, @Nullable String language, @Nullable String localFile,
+                           @Nullable LineStats lineStats, @Nullable FileActivity.LineChanges lineChanges) {
+        long sequence;
+        while (true) {
+            sequence = tail.get();
+            long available = published.get(index(sequence));
+            if (available == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) break;
+            } else if (available < sequence) {
+                // the dispatcher has not caught up with the previous lap yet
+                reportRejected();
+                return false;
+            }
+        }
+
+        Slot slot = slots[index(sequence)];
+        slot.file = file;
+        slot.entity = entity;
+        slot.timestamp = timestamp;
+        slot.isWrite = isWrite;
+        slot.isBuilding = isBuilding;
+        slot.project = project;
+        slot.language = language;
+        slot.localFile = localFile;
+        slot.lineCount = lineStats != null && lineStats.lineCount != null ? lineStats.lineCount : Heartbeat.NONE;
+        slot.lineNumber = lineStats != null && lineStats.lineNumber != null ? lineStats.lineNumber : Heartbeat.NONE;
+        slot.cursorPosition = lineStats != null && lineStats.cursorPosition != null ? lineStats.cursorPosition : Heartbeat.NONE;
+        slot.hasLineChanges = lineChanges != null;
+        slot.lineAdditions = lineChanges != null ? lineChanges.additions : 0;
+        slot.lineDeletions = lineChanges != null ? lineChanges.deletions : 0;
+        slot.humanLineChanges = lineChanges != null ? lineChanges.humanLineChanges : 0;
+        published.set(index(sequence), sequence + 1);
+
+        if (sleeping) LockSupport.unpark(thread);
+        return true;
+    }
+
+    private void dispatch() {
+        List<Heartbeat> batch = new ArrayList<Heartbeat>(MAX_BATCH);
+        while (true) {
+            boolean stopping = !running;
+            while (batch.size() < MAX_BATCH && take(batch)) { }
+            if (!batch.isEmpty()) {
+                try {
+                    sink.accept(batch);
+                } catch (Exception e) {
+                    WakaTime.warnException(e);
+                }
+                batch.clear();
+                continue;
+            }
+            if (stopping) return;
+
+            // check again after announcing sleep, so a publish racing with parking is never missed, and
+            // park without a timeout because publish() and shutdown() wake the thread
+            sleeping = true;
+            if (!isReadable() && running) LockSupport.park(this);
+            sleeping = false;
+        }
+    }
+
+    private boolean isReadable() {
+        return published.get(index(head)) == head + 1;
+    }
+
+    private boolean take(List<Heartbeat> batch) {
+        if (!isReadable()) return false;
+        Slot slot = slots[index(head)];
+
+        Heartbeat h = Heartbeat.obtain();
+        h.entity = slot.entity;
+        h.timestamp = slot.timestamp;
+        h.isWrite = slot.isWrite;
+        h.isBuilding = slot.isBuilding;
+        h.project = Heartbeat.intern(slot.project);
+        h.language = Heartbeat.intern(slot.language);
+        h.localFile = slot.localFile;
+        h.lineCount = slot.lineCount;
+        h.lineNumber = slot.lineNumber;
+        h.cursorPosition = slot.cursorPosition;
+        if (slot.hasLineChanges) {
+            h.lineAdditions = slot.lineAdditions;
+            h.lineDeletions = slot.lineDeletions;
+            h.humanLineChanges = slot.humanLineChanges;
+        }
+        try {
+            h.isUnsavedFile = !slot.file.exists();
+        } catch (Exception e) {
+            WakaTime.debugException(e);
+        }
+
+        // don't keep the file alive until this slot is reused
+        slot.file = null;
+        slot.entity = null;
+        slot.project = null;
+        slot.language = null;
+        slot.localFile = null;
+        published.set(index(head), head + CAPACITY);
+        head++;
+
+        batch.add(h);
+        return true;
+    }
+
+    private void reportRejected() {
+        long count = rejected.incrementAndGet();
+        if (count == 1 || count % 1000 == 0) {
+            WakaTime.log.warn("Heartbeat dispatcher is falling behind, dropped " + count + " heartbeats so far.");
+        }
+    }
+
+    private static int index(long sequence) {
+        return (int) (sequence & (CAPACITY - 1));
+    }
+}
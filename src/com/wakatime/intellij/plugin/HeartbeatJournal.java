@@ -0,0 +1,409 @@
+/* ==========================================================
+File:        HeartbeatJournal.java
+Description: Append-only on-disk log of heartbeats not yet accepted by wakatime-cli.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Heartbeats are written to segment files as "H seq json" lines before they are queued, and "A seq,seq,..."
+ * lines are appended once wakatime-cli accepted them. A record only counts once its newline was written.
+ * Segments are deleted when every heartbeat in them, and in all older segments, was acknowledged. On
+ * startup, heartbeats without an ack are replayed exactly once per sequence id.
+ */
+public class HeartbeatJournal {
+    private static final String folderName = "jetbrains-journal";
+    private static final String segmentPrefix = "segment-";
+    private static final String segmentSuffix = ".log";
+    private static final long maxSegmentBytes = 1024 * 1024;
+    private static final long maxJournalBytes = 16 * 1024 * 1024;
+
+    private static File folder = null;
+    private static RandomAccessFile lockFile = null;
+    private static FileLock lock = null;
+    private static FileChannel channel = null;
+    private static long activeSegment = -1;
+    private static long nextSequence = 1;
+    private static OutputStream channelStream = null;
+    private static long writeCount = 0;
+    private static volatile long syncedCount = 0;
+    private static final Object syncLock = new Object();
+    private static final HeartbeatJsonWriter jsonWriter = new HeartbeatJsonWriter(null);
+    private static boolean enabled = false;
+
+    // first sequence of each segment -> sequences in that segment which are not acknowledged yet
+    private static final TreeMap<Long, Set<Long>> pending = new TreeMap<Long, Set<Long>>();
+    private static final TreeMap<Long, Long> segmentSizes = new TreeMap<Long, Long>();
+
+    /**
+     * Opens the journal and returns heartbeats left over from a previous session which were never
+     * accepted by wakatime-cli, in the order they were written.
+     */
+    public static synchronized List<Heartbeat> open() {
+        List<Heartbeat> replay = new ArrayList<Heartbeat>();
+        if (enabled) return replay;
+        try {
+            folder = new File(Dependencies.combinePaths(Dependencies.getResourcesLocation(), folderName, WakaTime.IDE_NAME));
+            if (!folder.exists() && !folder.mkdirs()) throw new IOException("Unable to create " + folder);
+
+            // only one running instance of the same IDE may own its journal folder
+            lockFile = new RandomAccessFile(new File(folder, "journal.lock"), "rw");
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                WakaTime.log.info("Heartbeat journal in use by another IDE instance, continuing without it.");
+                lockFile.close();
+                lockFile = null;
+                return replay;
+            }
+
+            replay = readSegments();
+            startSegment(nextSequence);
+            enabled = true;
+            if (!replay.isEmpty()) WakaTime.log.info("Replaying " + replay.size() + " heartbeats from journal.");
+        } catch (IOException e) {
+            WakaTime.warnException(e);
+            close();
+        }
+        return replay;
+    }
+
+    /**
+     * Assigns the heartbeats sequence ids and writes them to the active segment, flushed to disk once
+     * after all were written. Writes from concurrent callers are flushed together by whichever caller
+     * syncs first.
+     */
+    public static void appendAll(Collection<Heartbeat> heartbeats) {
+        long written;
+        synchronized (HeartbeatJournal.class) {
+            if (!enabled) return;
+            try {
+                for (Heartbeat heartbeat : heartbeats) {
+                    long sequence = nextSequence++;
+                    heartbeat.sequence = sequence;
+                    if (segmentSizes.get(activeSegment) >= maxSegmentBytes) startSegment(sequence);
+                    writeHeartbeat(sequence, heartbeat);
+                    pending.get(activeSegment).add(sequence);
+                }
+            } catch (IOException e) {
+                WakaTime.warnException(e);
+                disable();
+                return;
+            }
+            written = writeCount;
+        }
+        sync(written);
+    }
+
+    /**
+     * Records that heartbeats were accepted by wakatime-cli, or dropped on purpose, so they are never replayed.
+     */
+    public static void ack(Collection<Heartbeat> heartbeats) {
+        StringBuilder line = new StringBuilder("A ");
+        boolean any = false;
+        for (Heartbeat h : heartbeats) {
+            if (h.sequence != Heartbeat.NO_SEQUENCE) {
+                if (any) line.append(',');
+                line.append(h.sequence);
+                any = true;
+            }
+            for (int i = 0; i < h.mergedCount; i++) {
+                if (any) line.append(',');
+                line.append(h.mergedSequences[i]);
+                any = true;
+            }
+        }
+        if (!any) return;
+        line.append('\n');
+
+        long written;
+        synchronized (HeartbeatJournal.class) {
+            if (!enabled) return;
+            try {
+                write(line.toString());
+            } catch (IOException e) {
+                WakaTime.warnException(e);
+                disable();
+                return;
+            }
+            for (Heartbeat h : heartbeats) {
+                if (h.sequence != Heartbeat.NO_SEQUENCE) removePending(h.sequence);
+                for (int i = 0; i < h.mergedCount; i++) {
+                    removePending(h.mergedSequences[i]);
+                }
+            }
+            written = writeCount;
+            truncate();
+        }
+        sync(written);
+    }
+
+    private static void removePending(long sequence) {
+        Map.Entry<Long, Set<Long>> segment = pending.floorEntry(sequence);
+        if (segment != null) segment.getValue().remove(sequence);
+    }
+
+    public static synchronized void close() {
+        enabled = false;
+        try {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            WakaTime.debugException(e);
+        }
+        channel = null;
+        channelStream = null;
+        try {
+            if (lock != null) lock.release();
+            if (lockFile != null) lockFile.close();
+        } catch (IOException e) {
+            WakaTime.debugException(e);
+        }
+        lock = null;
+        lockFile = null;
+        pending.clear();
+        segmentSizes.clear();
+    }
+
+    private static void sync(long written) {
+        if (syncedCount >= written) return;
+        synchronized (syncLock) {
+            if (syncedCount >= written) return;
+            FileChannel current;
+            long target;
+            synchronized (HeartbeatJournal.class) {
+                current = channel;
+                target = writeCount;
+            }
+            if (current == null) return;
+            try {
+                current.force(false);
+                syncedCount = target;
+            } catch (IOException e) {
+                WakaTime.debugException(e);
+            }
+        }
+    }
+
+    private static void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+        segmentSizes.put(activeSegment, segmentSizes.get(activeSegment) + buffer.limit());
+        writeCount++;
+    }
+
+    private static void writeHeartbeat(long sequence, Heartbeat heartbeat) throws IOException {
+        jsonWriter.reset(channelStream);
+        jsonWriter.writeAscii("H ");
+        jsonWriter.writeLong(sequence);
+        jsonWriter.writeByte(' ');
+        jsonWriter.writeHeartbeat(heartbeat);
+        jsonWriter.writeByte('\n');
+        jsonWriter.flush();
+        segmentSizes.put(activeSegment, segmentSizes.get(activeSegment) + jsonWriter.getBytesWritten());
+        writeCount++;
+    }
+
+    private static void startSegment(long firstSequence) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        File file = new File(folder, segmentPrefix + firstSequence + segmentSuffix);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channelStream = Channels.newOutputStream(channel);
+        activeSegment = firstSequence;
+        pending.put(firstSequence, new HashSet<Long>());
+        removeUnfinishedRecord();
+        channel.position(channel.size());
+    }
+
+    /**
+     * Cuts off a record left unfinished by a crash, so the next record starts on its own line instead
+     * of completing the broken one.
+     */
+    private static void removeUnfinishedRecord() throws IOException {
+        long size = channel.size();
+        long end = size;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (end > 0) {
+            long from = Math.max(0, end - buffer.capacity());
+            buffer.clear();
+            buffer.limit((int) (end - from));
+            channel.read(buffer, from);
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    end = from + i + 1;
+                    if (end < size) channel.truncate(end);
+                    segmentSizes.put(activeSegment, end);
+                    return;
+                }
+            }
+            end = from;
+        }
+        if (size > 0) channel.truncate(0);
+        segmentSizes.put(activeSegment, 0L);
+    }
+
+    private static void truncate() {
+        // delete fully acknowledged segments from the oldest one forward, because acks for a segment
+        // may be stored in newer segments
+        Iterator<Map.Entry<Long, Set<Long>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Set<Long>> segment = it.next();
+            if (segment.getKey() == activeSegment || !segment.getValue().isEmpty()) break;
+            deleteSegment(segment.getKey());
+            it.remove();
+        }
+
+        // never let a CLI that keeps rejecting heartbeats fill up the disk
+        long total = 0;
+        for (Long size : segmentSizes.values()) total += size;
+        while (total > maxJournalBytes && pending.size() > 1) {
+            Map.Entry<Long, Set<Long>> oldest = pending.pollFirstEntry();
+            WakaTime.log.warn("Heartbeat journal too large, discarding " + oldest.getValue().size() + " unsent heartbeats.");
+            Long size = segmentSizes.get(oldest.getKey());
+            total -= size != null ? size : 0;
+            deleteSegment(oldest.getKey());
+        }
+    }
+
+    private static void deleteSegment(long firstSequence) {
+        segmentSizes.remove(firstSequence);
+        File file = new File(folder, segmentPrefix + firstSequence + segmentSuffix);
+        if (!file.delete()) WakaTime.log.debug("Unable to delete journal segment " + file);
+    }
+
+    private static void disable() {
+        WakaTime.log.warn("Disabling heartbeat journal after write error.");
+        close();
+    }
+
+    private static List<Heartbeat> readSegments() throws IOException {
+        File[] files = folder.listFiles();
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(segmentPrefix) || !name.endsWith(segmentSuffix)) continue;
+                try {
+                    segments.put(Long.parseLong(name.substring(segmentPrefix.length(), name.length() - segmentSuffix.length())), file);
+                } catch (NumberFormatException e) {
+                    WakaTime.log.debug("Ignoring unknown file in journal: " + name);
+                }
+            }
+        }
+
+        TreeMap<Long, Heartbeat> unacked = new TreeMap<Long, Heartbeat>();
+        Set<Long> acked = new HashSet<Long>();
+        for (Map.Entry<Long, File> segment : segments.entrySet()) {
+            Set<Long> sequences = new HashSet<Long>();
+            pending.put(segment.getKey(), sequences);
+            segmentSizes.put(segment.getKey(), segment.getValue().length());
+            byte[] contents = Files.readAllBytes(segment.getValue().toPath());
+            int start = 0;
+            for (int end = 0; end < contents.length; end++) {
+                if (contents[end] != '\n') continue;
+                String line = new String(contents, start, end - start, StandardCharsets.UTF_8);
+                start = end + 1;
+                if (line.startsWith("H ")) {
+                    int space = line.indexOf(' ', 2);
+                    if (space == -1) continue;
+                    long sequence;
+                    try {
+                        sequence = Long.parseLong(line.substring(2, space));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    nextSequence = Math.max(nextSequence, sequence + 1);
+                    if (unacked.containsKey(sequence)) continue;
+                    Heartbeat h = fromJSON(line.substring(space + 1));
+                    if (h == null) continue;
+                    h.sequence = sequence;
+                    unacked.put(sequence, h);
+                    sequences.add(sequence);
+                } else if (line.startsWith("A ")) {
+                    for (String s : line.substring(2).split(",")) {
+                        try {
+                            acked.add(Long.parseLong(s.trim()));
+                        } catch (NumberFormatException e) { /* ignored */ }
+                    }
+                }
+            }
+            // every record ends with a newline, so bytes after the last one are a record cut short by a
+            // crash, such as "A 12" of "A 123", and must not be trusted
+            if (start < contents.length) {
+                WakaTime.log.debug("Ignoring unfinished record at the end of journal segment " + segment.getValue());
+            }
+        }
+
+        for (Long sequence : acked) {
+            unacked.remove(sequence);
+            removePending(sequence);
+        }
+        return new ArrayList<Heartbeat>(unacked.values());
+    }
+
+    @Nullable
+    private static Heartbeat fromJSON(String json) {
+        Map<String, Object> obj = Json.parseObject(json);
+        if (obj == null) return null;
+        String entity = Json.getString(obj, "entity");
+        BigDecimal timestamp = Json.getNumber(obj, "timestamp");
+        if (entity == null || timestamp == null) return null;
+        Heartbeat h = Heartbeat.obtain();
+        h.entity = entity;
+        h.timestamp = timestamp.movePointRight(6).setScale(0, RoundingMode.HALF_UP).longValue();
+        h.isWrite = Boolean.TRUE.equals(Json.getBoolean(obj, "is_write"));
+        h.lineCount = getInt(obj, "lines", Heartbeat.NONE);
+        h.lineNumber = getInt(obj, "lineno", Heartbeat.NONE);
+        h.cursorPosition = getInt(obj, "cursorpos", Heartbeat.NONE);
+        h.humanLineChanges = getInt(obj, "human_line_changes", 0);
+        h.lineAdditions = getInt(obj, "line_additions", 0);
+        h.lineDeletions = getInt(obj, "line_deletions", 0);
+        h.isUnsavedFile = Boolean.TRUE.equals(Json.getBoolean(obj, "is_unsaved_entity"));
+        h.isBuilding = "building".equals(Json.getString(obj, "category"));
+        h.project = Heartbeat.intern(Json.getString(obj, "alternate_project"));
+        h.language = Heartbeat.intern(Json.getString(obj, "language"));
+        h.localFile = Json.getString(obj, "local_file");
+        return h;
+    }
+
+    private static int getInt(Map<String, Object> obj, String key, int defaultValue) {
+        Integer value = Json.getInteger(obj, key);
+        return value != null ? value : defaultValue;
+    }
+}
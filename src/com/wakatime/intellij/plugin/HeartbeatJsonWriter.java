@@ -0,0 +1,294 @@
+/* ==========================================================
+File:        HeartbeatJsonWriter.java
+Description: Streams heartbeats as UTF-8 JSON through a reusable buffer.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes heartbeats straight into a fixed size byte buffer which is written to the output stream
+ * whenever it fills up, so memory used while sending does not grow with the number of heartbeats.
+ * Not thread safe; each thread writing JSON should own its writer.
+ */
+public class HeartbeatJsonWriter {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int CACHE_SIZE = 512;
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    private static final byte[][] ESCAPES = buildEscapes();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] scratch = new byte[1024];
+    private final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private int count = 0;
+    private long written = 0;
+    private OutputStream out;
+
+    public HeartbeatJsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Points this writer at a new output stream, reusing its buffer.
+     */
+    public void reset(OutputStream out) {
+        this.out = out;
+        this.count = 0;
+        this.written = 0;
+    }
+
+    /**
+     * Number of bytes written since the last reset, including bytes still buffered.
+     */
+    public long getBytesWritten() {
+        return written + count;
+    }
+
+    public void writeArray(List<Heartbeat> heartbeats) throws IOException {
+        writeByte('[');
+        boolean first = true;
+        for (Heartbeat heartbeat : heartbeats) {
+            if (!first)
+                writeByte(',');
+            writeHeartbeat(heartbeat);
+            first = false;
+        }
+        writeByte(']');
+    }
+
+    public void writeHeartbeat(Heartbeat heartbeat) throws IOException {
+        writeAscii("{\"entity\":");
+        writeCachedString(heartbeat.entity);
+        writeAscii(",\"timestamp\":");
+        writeTimestamp(heartbeat.timestamp);
+        writeAscii(heartbeat.isWrite ? ",\"is_write\":true" : ",\"is_write\":false");
+        if (heartbeat.lineCount != Heartbeat.NONE) {
+            writeAscii(",\"lines\":");
+            writeLong(heartbeat.lineCount);
+        }
+        if (heartbeat.lineNumber != Heartbeat.NONE) {
+            writeAscii(",\"lineno\":");
+            writeLong(heartbeat.lineNumber);
+        }
+        if (heartbeat.cursorPosition != Heartbeat.NONE) {
+            writeAscii(",\"cursorpos\":");
+            writeLong(heartbeat.cursorPosition);
+        }
+        if (heartbeat.humanLineChanges != 0) {
+            writeAscii(",\"human_line_changes\":");
+            writeLong(heartbeat.humanLineChanges);
+        }
+        if (heartbeat.lineAdditions != 0) {
+            writeAscii(",\"line_additions\":");
+            writeLong(heartbeat.lineAdditions);
+        }
+        if (heartbeat.lineDeletions != 0) {
+            writeAscii(",\"line_deletions\":");
+            writeLong(heartbeat.lineDeletions);
+        }
+        if (heartbeat.isUnsavedFile) {
+            writeAscii(",\"is_unsaved_entity\":true");
+        }
+        if (heartbeat.isBuilding) {
+            writeAscii(",\"category\":\"building\"");
+        }
+        if (heartbeat.project != null) {
+            writeAscii(",\"alternate_project\":");
+            writeCachedString(heartbeat.project);
+        }
+        if (heartbeat.language != null) {
+            writeAscii(",\"language\":");
+            writeCachedString(heartbeat.language);
+        }
+        if (heartbeat.localFile != null) {
+            writeAscii(",\"local_file\":");
+            writeString(heartbeat.localFile);
+        }
+        writeByte('}');
+    }
+
+    /**
+     * Writes a string which is known to contain only ASCII characters, without quoting or escaping.
+     */
+    public void writeAscii(String s) throws IOException {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    public void writeLong(long value) throws IOException {
+        if (value < 0) {
+            writeByte('-');
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        ensure(20);
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        // digits were written least significant first
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    /**
+     * Writes a microsecond timestamp as decimal seconds.
+     */
+    public void writeTimestamp(long micros) throws IOException {
+        writeLong(micros / 1000000);
+        writeByte('.');
+        ensure(6);
+        int fraction = (int) (micros % 1000000);
+        for (int i = 5; i >= 0; i--) {
+            buffer[count + i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        count += 6;
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string encoded as UTF-8.
+     */
+    public void writeString(String s) throws IOException {
+        int len = escape(s);
+        writeBytes(scratch, 0, len);
+    }
+
+    /**
+     * Same as writeString, but remembers the encoded bytes for strings repeated across heartbeats
+     * such as file paths, project names and languages.
+     */
+    public void writeCachedString(String s) throws IOException {
+        byte[] encoded = cache.get(s);
+        if (encoded == null) {
+            int len = escape(s);
+            encoded = Arrays.copyOf(scratch, len);
+            cache.put(s, encoded);
+        }
+        writeBytes(encoded, 0, encoded.length);
+    }
+
+    /**
+     * Encodes the quoted, escaped string into the scratch buffer and returns its length in bytes.
+     */
+    private int escape(String s) {
+        final int len = s.length();
+        // worst case is every char written as a six byte unicode escape, plus quotes
+        if (scratch.length < len * 6 + 2) scratch = new byte[Math.max(len * 6 + 2, scratch.length * 2)];
+        byte[] b = scratch;
+        int n = 0;
+        b[n++] = '"';
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < ESCAPES.length) {
+                byte[] escaped = ESCAPES[c];
+                if (escaped == null) {
+                    b[n++] = (byte) c;
+                } else {
+                    System.arraycopy(escaped, 0, b, n, escaped.length);
+                    n += escaped.length;
+                }
+            } else if (c >= '\u2000' && c <= '\u20FF') {
+                b[n++] = '\\';
+                b[n++] = 'u';
+                b[n++] = HEX[(c >> 12) & 0xF];
+                b[n++] = HEX[(c >> 8) & 0xF];
+                b[n++] = HEX[(c >> 4) & 0xF];
+                b[n++] = HEX[c & 0xF];
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xC0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[n++] = (byte) (0xF0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement the JDK's UTF-8 encoder uses
+                b[n++] = '?';
+            } else {
+                b[n++] = (byte) (0xE0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        b[n++] = '"';
+        return n;
+    }
+
+    private static byte[][] buildEscapes() {
+        // escape sequences for the first 160 chars, null when the char is written as-is
+        byte[][] escapes = new byte[0xA0][];
+        for (int c = 0; c < escapes.length; c++) {
+            if (c <= 0x1F || c >= 0x7F) {
+                escapes[c] = new byte[] {'\\', 'u', '0', '0', HEX[(c >> 4) & 0xF], HEX[c & 0xF]};
+            }
+        }
+        escapes['\\'] = new byte[] {'\\', '\\'};
+        escapes['"'] = new byte[] {'\\', '"'};
+        escapes['\b'] = new byte[] {'\\', 'b'};
+        escapes['\f'] = new byte[] {'\\', 'f'};
+        escapes['\n'] = new byte[] {'\\', 'n'};
+        escapes['\r'] = new byte[] {'\\', 'r'};
+        escapes['\t'] = new byte[] {'\\', 't'};
+        return escapes;
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    public void writeByte(int b) throws IOException {
+        if (count == buffer.length) flushBuffer();
+        buffer[count++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int len) throws IOException {
+        if (len > buffer.length - count) {
+            flushBuffer();
+            if (len > buffer.length) {
+                out.write(bytes, offset, len);
+                written += len;
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, count, len);
+        count += len;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (count + n > buffer.length) flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count == 0) return;
+        out.write(buffer, 0, count);
+        written += count;
+        count = 0;
+    }
+}
@@ -0,0 +1,143 @@
+/* ==========================================================
+File:        HeartbeatQueue.java
+Description: Bounded queue of heartbeats waiting to be sent to wakatime-cli.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * When full, heartbeats are first coalesced per entity, then the oldest non-write heartbeats are dropped,
+ * so memory stays flat while wakatime-cli is unavailable. Write heartbeats are only dropped when the
+ * queue holds nothing else.
+ */
+public class HeartbeatQueue {
+    public static final int DEFAULT_CAPACITY = 2000;
+    private static final int MIN_CAPACITY = 100;
+
+    private final ArrayDeque<Heartbeat> queue = new ArrayDeque<Heartbeat>();
+    private int capacity = DEFAULT_CAPACITY;
+    private long estimatedBytes = 0;
+    private long coalesced = 0;
+    private long dropped = 0;
+    private long reportedCoalesced = 0;
+    private long reportedDropped = 0;
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(MIN_CAPACITY, capacity);
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public void add(Heartbeat heartbeat) {
+        List<Heartbeat> merged = new ArrayList<Heartbeat>();
+        List<Heartbeat> removed = new ArrayList<Heartbeat>();
+        synchronized (this) {
+            if (queue.size() >= capacity) makeRoom(merged, removed);
+            queue.add(heartbeat);
+            estimatedBytes += estimateBytes(heartbeat);
+        }
+        // merged heartbeats are acknowledged with the heartbeat that took over their line changes
+        Heartbeat.release(merged);
+        HeartbeatJournal.ack(removed);
+        Heartbeat.release(removed);
+    }
+
+    public void addAll(Collection<Heartbeat> heartbeats) {
+        for (Heartbeat h : heartbeats) {
+            add(h);
+        }
+    }
+
+    public synchronized Heartbeat poll() {
+        Heartbeat h = queue.poll();
+        if (h != null) estimatedBytes -= estimateBytes(h);
+        return h;
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Rough size of the queued heartbeats once encoded as JSON.
+     */
+    public synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Logs how many heartbeats were coalesced or dropped since the last report.
+     */
+    public void reportOverflow() {
+        long newCoalesced, newDropped;
+        synchronized (this) {
+            newCoalesced = coalesced - reportedCoalesced;
+            newDropped = dropped - reportedDropped;
+            reportedCoalesced = coalesced;
+            reportedDropped = dropped;
+        }
+        if (newCoalesced == 0 && newDropped == 0) return;
+        WakaTime.log.warn("Heartbeat queue reached its capacity of " + getCapacity() + ": coalesced " + newCoalesced
+                + " and dropped " + newDropped + " heartbeats (" + getCoalescedCount() + " and " + getDroppedCount() + " in total).");
+    }
+
+    private void makeRoom(List<Heartbeat> merged, List<Heartbeat> removed) {
+        coalesce(merged);
+        if (queue.size() < capacity) return;
+
+        Iterator<Heartbeat> it = queue.iterator();
+        while (it.hasNext()) {
+            Heartbeat h = it.next();
+            if (!h.isWrite) {
+                it.remove();
+                removed.add(h);
+                estimatedBytes -= estimateBytes(h);
+                dropped++;
+                return;
+            }
+        }
+
+        // only write heartbeats left, so give up the oldest one
+        Heartbeat oldest = queue.poll();
+        removed.add(oldest);
+        estimatedBytes -= estimateBytes(oldest);
+        dropped++;
+    }
+
+    private void coalesce(List<Heartbeat> merged) {
+        List<Heartbeat> redundant = HeartbeatCoalescer.coalesce(queue, WakaTime.FREQUENCY_MICROS);
+        for (Heartbeat h : redundant) {
+            estimatedBytes -= estimateBytes(h);
+        }
+        merged.addAll(redundant);
+        coalesced += redundant.size();
+    }
+
+    private static int estimateBytes(Heartbeat h) {
+        // fixed keys and numbers plus the strings, which are mostly ASCII
+        int bytes = 160 + h.entity.length();
+        if (h.project != null) bytes += h.project.length();
+        if (h.language != null) bytes += h.language.length();
+        if (h.localFile != null) bytes += h.localFile.length();
+        return bytes;
+    }
+}
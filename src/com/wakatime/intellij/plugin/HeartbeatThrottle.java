@@ -0,0 +1,84 @@
+/* ==========================================================
+File:        HeartbeatThrottle.java
+Description: Limits how often heartbeats are sent for the same file.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers when a heartbeat was last accepted per project and entity. Updates are compare-and-set on a
+ * concurrent map, so listeners on any thread and in any project window can check it without locking.
+ */
+public class HeartbeatThrottle {
+    private static final int MAX_ENTRIES = 1000;
+
+    private final long intervalMillis;
+    private final ConcurrentHashMap<String, Long> lastSent = new ConcurrentHashMap<String, Long>();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    public HeartbeatThrottle(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Returns true and records the time when a heartbeat for this entity should be sent now. Writes are
+     * always accepted.
+     */
+    public boolean tryAcquire(@Nullable String project, String entity, boolean isWrite, long nowMillis) {
+        String key = key(project, entity);
+        while (true) {
+            Long last = lastSent.get(key);
+            if (last == null) {
+                if (lastSent.putIfAbsent(key, nowMillis) == null) {
+                    if (lastSent.size() > MAX_ENTRIES) evictIdle(nowMillis);
+                    return true;
+                }
+                continue;
+            }
+            if (!isWrite && last + intervalMillis >= nowMillis) return false;
+            if (lastSent.replace(key, last, nowMillis)) return true;
+        }
+    }
+
+    /**
+     * Returns true when a non-write heartbeat for this entity would be accepted, without recording it.
+     */
+    public boolean wouldAccept(@Nullable String project, String entity, long nowMillis) {
+        Long last = lastSent.get(key(project, entity));
+        return last == null || last + intervalMillis < nowMillis;
+    }
+
+    private static String key(@Nullable String project, String entity) {
+        return project != null ? project + "\u0000" + entity : entity;
+    }
+
+    private void evictIdle(long nowMillis) {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            // entries older than the interval no longer throttle anything
+            Iterator<Map.Entry<String, Long>> it = lastSent.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() + intervalMillis < nowMillis) it.remove();
+            }
+
+            // more files active within the interval than allowed, forget arbitrary ones
+            it = lastSent.entrySet().iterator();
+            while (lastSent.size() > MAX_ENTRIES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* ==========================================================
+File:        LineStatsTracker.java
+Description: Keeps the last known cursor position and line count per document.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Updated from caret and document events, so building a heartbeat only reads a snapshot instead of
+ * looking up the focused caret through DataManager or walking the caret model.
+ */
+public class LineStatsTracker {
+    private static final Key<Position> POSITION = Key.create("WakaTime.LineStats");
+
+    /**
+     * Immutable so readers on any thread always see a consistent line count and cursor position.
+     */
+    private static class Position {
+        final int lineCount;
+        final int line;
+        final int column;
+
+        Position(int lineCount, int line, int column) {
+            this.lineCount = lineCount;
+            this.line = line;
+            this.column = column;
+        }
+
+        boolean hasCursor() {
+            return line >= 0;
+        }
+    }
+
+    /**
+     * Records the new position of the primary caret. Secondary carets of a multi-caret editor are ignored.
+     * The line count kept up to date by documentChanged is reused, so the document is only asked to
+     * count its lines the first time.
+     */
+    public static void caretMoved(Editor editor, @Nullable Caret caret, @Nullable LogicalPosition position) {
+        if (position == null) return;
+        if (caret != null && caret != editor.getCaretModel().getPrimaryCaret()) return;
+        Document document = editor.getDocument();
+        Position previous = document.getUserData(POSITION);
+        int lineCount = previous != null ? previous.lineCount : document.getLineCount();
+        document.putUserData(POSITION, new Position(lineCount, position.line, position.column));
+    }
+
+    /**
+     * Adjusts the line count by the lines one change inserted and removed, instead of asking the
+     * document to count its lines again.
+     */
+    public static void documentChanged(Document document, int added, int removed) {
+        Position previous = document.getUserData(POSITION);
+        if (previous == null) {
+            resync(document);
+            return;
+        }
+        document.putUserData(POSITION, new Position(previous.lineCount + added - removed, previous.line, previous.column));
+    }
+
+    /**
+     * Counts the document's lines again, after changes which were not seen one by one.
+     */
+    public static void resync(Document document) {
+        Position previous = document.getUserData(POSITION);
+        int line = previous != null ? previous.line : -1;
+        int column = previous != null ? previous.column : -1;
+        document.putUserData(POSITION, new Position(document.getLineCount(), line, column));
+    }
+
+    /**
+     * Returns the last known stats for the document, seeding the cursor position from the editor's
+     * primary caret when no caret event was seen yet. Returns null when nothing is known.
+     */
+    @Nullable
+    public static LineStats getSnapshot(Document document, @Nullable Editor editor) {
+        Position position = document.getUserData(POSITION);
+        if ((position == null || !position.hasCursor()) && editor != null && !editor.isDisposed()) {
+            caretMoved(editor, null, editor.getCaretModel().getLogicalPosition());
+            position = document.getUserData(POSITION);
+        }
+        if (position == null) return null;
+
+        LineStats lineStats = new LineStats();
+        lineStats.lineCount = position.lineCount;
+        if (position.hasCursor()) {
+            lineStats.lineNumber = position.line + 1;
+            lineStats.cursorPosition = position.column + 1;
+        }
+        return lineStats;
+    }
+}
@@ -0,0 +1,170 @@
+/* ==========================================================
+File:        ProcessSupervisor.java
+Description: Runs wakatime-cli child processes with timeouts and output draining.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every child process gets its stdout and stderr read on background threads so it can never block on a
+ * full pipe, and is killed when it runs longer than its timeout. At most a few child processes run at
+ * the same time.
+ */
+public class ProcessSupervisor {
+    private static final int MAX_CONCURRENT_PROCESSES = 3;
+    private static final int MAX_OUTPUT_CHARS = 64 * 1024;
+
+    private static final Semaphore slots = new Semaphore(MAX_CONCURRENT_PROCESSES, true);
+    private static final ExecutorService drainers = Executors.newCachedThreadPool(new NamedThreadFactory("WakaTime Process Output"));
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("WakaTime Process Watchdog"));
+
+    public interface StdinWriter {
+        void write(OutputStream stdin) throws IOException;
+    }
+
+    public static class Result {
+        public final int exitCode;
+        public final boolean timedOut;
+        public final String stdout;
+        public final String stderr;
+
+        Result(int exitCode, boolean timedOut, String stdout, String stderr) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        public boolean isSuccess() {
+            return !timedOut && exitCode == 0;
+        }
+
+        public String getOutput() {
+            return stdout + stderr;
+        }
+    }
+
+    /**
+     * Starts the command, writes stdin if given, and waits for it to exit. The process is killed once
+     * timeoutSeconds passed since it started, even while its stdin is still being written.
+     */
+    public static Result run(String[] cmds, @Nullable StdinWriter stdinWriter, long timeoutSeconds) throws IOException, InterruptedException {
+        if (!slots.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+            WakaTime.log.warn("Too many wakatime-cli processes running, skipped: " + cmds[0]);
+            return new Result(-1, true, "", "");
+        }
+        try {
+            final Process proc = new ProcessBuilder(cmds).start();
+            final AtomicBoolean killed = new AtomicBoolean(false);
+            ScheduledFuture<?> killer = watchdog.schedule(new Runnable() {
+                public void run() {
+                    if (proc.isAlive()) {
+                        WakaTime.log.warn("Killing wakatime-cli after " + timeoutSeconds + " seconds without exiting.");
+                        killed.set(true);
+                        proc.destroyForcibly();
+                    }
+                }
+            }, timeoutSeconds, TimeUnit.SECONDS);
+            try {
+                Future<String> stdout = drain(proc.getInputStream());
+                Future<String> stderr = drain(proc.getErrorStream());
+
+                OutputStream stdin = proc.getOutputStream();
+                if (stdinWriter != null) {
+                    try {
+                        stdinWriter.write(stdin);
+                    } catch (IOException e) {
+                        // the process exited or was killed before reading all of stdin
+                        if (proc.isAlive()) throw e;
+                        WakaTime.debugException(e);
+                    }
+                }
+                try {
+                    stdin.close();
+                } catch (IOException e) { /* ignored because wakatime-cli closes pipe after receiving \n */ }
+
+                boolean exited = proc.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+                if (!exited) proc.destroyForcibly().waitFor(5, TimeUnit.SECONDS);
+                // only a process the watchdog actually killed timed out, one exiting just as the timeout
+                // fired did not
+                boolean timedOut = !exited || killed.get();
+                int exitCode = proc.isAlive() ? -1 : proc.exitValue();
+                return new Result(exitCode, timedOut, await(stdout), await(stderr));
+            } finally {
+                killer.cancel(false);
+                if (proc.isAlive()) proc.destroyForcibly();
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    private static Future<String> drain(final InputStream stream) {
+        return drainers.submit(() -> {
+            StringBuilder output = new StringBuilder();
+            char[] buffer = new char[4096];
+            try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    // keep reading past the limit so the process never blocks on a full pipe
+                    int keep = Math.min(n, MAX_OUTPUT_CHARS - output.length());
+                    if (keep > 0) output.append(buffer, 0, keep);
+                }
+            } catch (IOException e) {
+                WakaTime.debugException(e);
+            }
+            return output.toString();
+        });
+    }
+
+    private static String await(Future<String> output) throws InterruptedException {
+        try {
+            return output.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return "";
+        } catch (TimeoutException e) {
+            // a grandchild process may still hold the pipe open
+            output.cancel(true);
+            return "";
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -84,13 +84,10 @@ public class Settings extends DialogWrapper {
 
     @Override
     public void doOKAction() {
-        ConfigFile.setApiKey(apiKey.getText());
-        ConfigFile.set("settings", "proxy", false, proxy.getText());
-        ConfigFile.set("settings", "debug", false, debug.isSelected() ? "true" : "false");
-        ConfigFile.set("settings", "status_bar_enabled", false, statusBar.isSelected() ? "true" : "false");
-        WakaTime.setupConfigs();
-        WakaTime.setupStatusBar();
-        WakaTime.setLoggingLevel();
+        ConfigFile.setApiKey(apiKey.getText(), ConfigFile.update(false)
+                .set("settings", "proxy", proxy.getText())
+                .set("settings", "debug", debug.isSelected() ? "true" : "false")
+                .set("settings", "status_bar_enabled", statusBar.isSelected() ? "true" : "false"));
         super.doOKAction();
     }
 
@@ -0,0 +1,72 @@
+/* ==========================================================
+File:        StatusBarUpdater.java
+Description: Repaints the status bar widgets of all project windows together.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import com.intellij.openapi.application.ApplicationManager;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Update requests made while one is already scheduled are merged, and all widgets are updated in one
+ * pass on the EDT at most once per second. A widget is only repainted when its text changed.
+ */
+public class StatusBarUpdater {
+    private static final long minIntervalMillis = 1000;
+
+    private static final Set<CustomStatusBar.WakaTimeStatusBarWidget> widgets = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private static volatile long lastUpdateAt = 0;
+
+    public static void register(CustomStatusBar.WakaTimeStatusBarWidget widget) {
+        widgets.add(widget);
+    }
+
+    public static void unregister(CustomStatusBar.WakaTimeStatusBarWidget widget) {
+        widgets.remove(widget);
+    }
+
+    /**
+     * Schedules an update of all widgets, unless one is already scheduled.
+     */
+    public static void requestUpdate() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        long delay = Math.max(0, lastUpdateAt + minIntervalMillis - System.currentTimeMillis());
+        try {
+            WakaTime.scheduler.schedule(new Runnable() {
+                public void run() {
+                    ApplicationManager.getApplication().invokeLater(new Runnable() {
+                        public void run() {
+                            update();
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            scheduled.set(false);
+            WakaTime.debugException(e);
+        }
+    }
+
+    private static void update() {
+        // requests made from now on schedule another update, so none are lost
+        scheduled.set(false);
+        lastUpdateAt = System.currentTimeMillis();
+        try {
+            String text = WakaTime.getStatusBarText();
+            for (CustomStatusBar.WakaTimeStatusBarWidget widget : widgets) {
+                widget.update(text);
+            }
+        } catch (Exception e) {
+            WakaTime.debugException(e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/* ==========================================================
+File:        Timestamps.java
+Description: Heartbeat timestamps as microseconds since the epoch.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamps are plain longs everywhere and only turned into decimal seconds when serialized.
+ */
+public class Timestamps {
+    private static final long MICROS_PER_SECOND = 1000000;
+
+    private static final AtomicLong lastMicros = new AtomicLong(0);
+
+    /**
+     * Current time in microseconds. Every call returns a larger value than the call before, so
+     * heartbeats created within the same millisecond still keep their order.
+     */
+    public static long nowMicros() {
+        final long now = System.currentTimeMillis() * 1000;
+        return lastMicros.updateAndGet(last -> Math.max(now, last + 1));
+    }
+
+    public static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    public static long toMillis(long micros) {
+        return micros / 1000;
+    }
+
+    /**
+     * Formats a timestamp as decimal seconds, the format wakatime-cli expects.
+     */
+    public static String format(long micros) {
+        String fraction = Long.toString(MICROS_PER_SECOND + micros % MICROS_PER_SECOND).substring(1);
+        return (micros / MICROS_PER_SECOND) + "." + fraction;
+    }
+}
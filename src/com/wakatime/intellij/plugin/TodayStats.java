@@ -0,0 +1,118 @@
+/* ==========================================================
+File:        TodayStats.java
+Description: Today's coding time as reported by wakatime-cli.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, so one instance can be shared by every widget rendering it.
+ */
+public class TodayStats {
+    public static final long UNKNOWN = -1;
+
+    public static class Category {
+        public final String name;
+        public final String text;
+        public final long totalSeconds;
+
+        Category(String name, String text, long totalSeconds) {
+            this.name = name;
+            this.text = text;
+            this.totalSeconds = totalSeconds;
+        }
+    }
+
+    public final String text;
+    public final long totalSeconds;
+    public final List<Category> categories;
+    public final boolean hasTeamFeatures;
+    public final long fetchedAt;
+
+    private TodayStats(String text, long totalSeconds, List<Category> categories, boolean hasTeamFeatures, long fetchedAt) {
+        this.text = text;
+        this.totalSeconds = totalSeconds;
+        this.categories = categories;
+        this.hasTeamFeatures = hasTeamFeatures;
+        this.fetchedAt = fetchedAt;
+    }
+
+    /**
+     * Parses the output of wakatime-cli --today --output json. Older versions of wakatime-cli ignore
+     * --output and print the text only, which is used as is.
+     */
+    @Nullable
+    public static TodayStats parse(String output, long fetchedAt) {
+        output = output.replace("\r", "").replace("\n", "").trim();
+        if (!output.startsWith("{")) return new TodayStats(output, UNKNOWN, Collections.<Category>emptyList(), false, fetchedAt);
+
+        Map<String, Object> obj = Json.parseObject(output);
+        if (obj == null) return null;
+
+        List<Category> categories = new ArrayList<Category>();
+        String grandTotal = null;
+        long totalSeconds = UNKNOWN;
+        Map<String, Object> data = getObject(obj, "data");
+        if (data != null) {
+            Map<String, Object> total = getObject(data, "grand_total");
+            if (total != null) {
+                grandTotal = Json.getString(total, "text");
+                totalSeconds = getSeconds(total);
+            }
+            Object list = data.get("categories");
+            if (list instanceof List) {
+                for (Object item : (List<?>) list) {
+                    if (!(item instanceof Map)) continue;
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> category = (Map<String, Object>) item;
+                    String name = Json.getString(category, "name");
+                    String text = Json.getString(category, "text");
+                    if (name != null && text != null) categories.add(new Category(name, text, getSeconds(category)));
+                }
+            }
+        }
+
+        String text = Json.getString(obj, "text");
+        if (text == null) text = describe(categories);
+        if (text == null) text = grandTotal;
+        if (text == null) return null;
+        return new TodayStats(text.trim(), totalSeconds, Collections.unmodifiableList(categories), Json.getBoolean(obj, "has_team_features"), fetchedAt);
+    }
+
+    /**
+     * Formats categories the way wakatime-cli --today prints them, such as "1 hr 5 mins Coding, 3 mins Debugging".
+     */
+    @Nullable
+    private static String describe(List<Category> categories) {
+        if (categories.isEmpty()) return null;
+        StringBuilder sb = new StringBuilder();
+        for (Category category : categories) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(category.text).append(' ').append(category.name);
+        }
+        return sb.toString();
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getObject(Map<String, Object> obj, String key) {
+        Object value = obj.get(key);
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    private static long getSeconds(Map<String, Object> obj) {
+        BigDecimal seconds = Json.getNumber(obj, "total_seconds");
+        return seconds != null ? seconds.longValue() : UNKNOWN;
+    }
+}
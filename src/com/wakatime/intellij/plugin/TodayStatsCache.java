@@ -0,0 +1,81 @@
+/* ==========================================================
+File:        TodayStatsCache.java
+Description: Keeps the latest today's coding time for the status bar.
+Maintainer:  WakaTime <support@wakatime.com>
+License:     BSD, see LICENSE for more details.
+Website:     https://wakatime.com/
+===========================================================*/
+
+package com.wakatime.intellij.plugin;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Readers always get the last stats right away, even when old, and a stale read starts a refresh in
+ * the background. At most one refresh runs at a time, on the CLI worker after any heartbeats already
+ * queued, so its result includes them.
+ */
+public class TodayStatsCache {
+    // refreshing after every flush would run wakatime-cli more often than the stats change
+    private static final long minRefreshMillis = 60 * 1000;
+    // when idle nothing triggers a refresh after a flush, so refresh on read once stats are this old
+    private static final long maxAgeMillis = 5 * 60 * 1000;
+
+    private static final AtomicBoolean inFlight = new AtomicBoolean(false);
+    // a forced refresh came in while one was running, which may have used an old api key
+    private static volatile boolean refreshAgain = false;
+    private static volatile TodayStats current = null;
+    private static volatile long lastAttemptAt = 0;
+
+    /**
+     * Returns the latest stats, or null before the first refresh finished.
+     */
+    @Nullable
+    public static TodayStats get() {
+        TodayStats stats = current;
+        if (stats == null || System.currentTimeMillis() - stats.fetchedAt > maxAgeMillis) refresh(false);
+        return stats;
+    }
+
+    /**
+     * Refreshes the stats in the background. Unless forced, does nothing when the last refresh was
+     * less than a minute ago. While a refresh is already running, does nothing unless forced, in
+     * which case another refresh follows the running one.
+     */
+    public static void refresh(boolean force) {
+        if (!WakaTime.READY) return;
+        if (!force && System.currentTimeMillis() - lastAttemptAt < minRefreshMillis) return;
+        if (!inFlight.compareAndSet(false, true)) {
+            if (!force) return;
+            refreshAgain = true;
+            // fetch() checks the flag after clearing inFlight, so one of us starts the next refresh
+            if (!inFlight.compareAndSet(false, true)) return;
+            refreshAgain = false;
+        }
+        lastAttemptAt = System.currentTimeMillis();
+        // fetch() clears the flag once it ran, so clear it here when it never will
+        if (!CliWorker.refreshToday()) inFlight.set(false);
+    }
+
+    /**
+     * Called on the CLI worker thread to run wakatime-cli and publish the result.
+     */
+    static void fetch() {
+        try {
+            TodayStats stats = WakaTime.fetchTodayStats();
+            if (stats == null) return;
+            TodayStats previous = current;
+            current = stats;
+            if (previous == null || !previous.text.equals(stats.text)) StatusBarUpdater.requestUpdate();
+        } finally {
+            lastAttemptAt = System.currentTimeMillis();
+            inFlight.set(false);
+            if (refreshAgain) {
+                refreshAgain = false;
+                refresh(true);
+            }
+        }
+    }
+}
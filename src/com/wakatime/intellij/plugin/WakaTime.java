@@ -11,11 +11,9 @@ package com.wakatime.intellij.plugin;
 import com.intellij.AppTopics;
 //import com.intellij.compiler.server.BuildManagerListener;
 import com.intellij.ide.BrowserUtil;
-import com.intellij.ide.DataManager;
 import com.intellij.ide.plugins.PluginManager;
 import com.intellij.ide.plugins.PluginManagerCore;
 import com.intellij.openapi.Disposable;
-import com.intellij.openapi.actionSystem.CommonDataKeys;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationInfo;
 import com.intellij.openapi.application.ApplicationManager;
@@ -28,14 +26,16 @@ import com.intellij.openapi.extensions.PluginId;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.wm.StatusBar;
-import com.intellij.openapi.wm.WindowManager;
+import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.net.HttpConfigurable;
@@ -44,16 +44,15 @@ import org.jetbrains.annotations.Nullable;
 
 import java.awt.KeyboardFocusManager;
 import java.io.*;
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class WakaTime implements ApplicationComponent {
 
-    public static final BigDecimal FREQUENCY = new BigDecimal(2 * 60); // max secs between heartbeats for continuous coding
+    public static final long FREQUENCY_MICROS = 2 * 60 * 1000000L; // max time between heartbeats for continuous coding
     public static final Logger log = Logger.getInstance("WakaTime");
 
     public static String VERSION;
@@ -65,18 +64,28 @@ public class WakaTime implements ApplicationComponent {
     public static Boolean DEBUG_CHECKED = false;
     public static Boolean STATUS_BAR = false;
     public static Boolean READY = false;
-    public static String lastFile = null;
-    public static BigDecimal lastTime = new BigDecimal(0);
     public static Boolean isBuilding = false;
-    public static Map<String, LineStats> lineStatsCache = new HashMap<String, LineStats>();
-    public static Map<String, Integer> humanLineChanges = new HashMap<String, Integer>();
-    public static Map<String, Boolean> filesWithHumanTyping = new HashMap<String, Boolean>();
     public static Boolean cancelApiKey = false;
 
-    private final int queueTimeoutSeconds = 30;
-    private static ConcurrentLinkedQueue<Heartbeat> heartbeatsQueue = new ConcurrentLinkedQueue<Heartbeat>();
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private static ScheduledFuture<?> scheduledFixture;
+    private static HeartbeatQueue heartbeatsQueue = new HeartbeatQueue();
+    private static final HeartbeatDispatcher dispatcher = new HeartbeatDispatcher(new Consumer<List<Heartbeat>>() {
+        public void accept(List<Heartbeat> heartbeats) {
+            queueHeartbeats(heartbeats);
+        }
+    });
+    private static final HeartbeatThrottle throttle = new HeartbeatThrottle(Timestamps.toMillis(FREQUENCY_MICROS));
+    static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final FlushScheduler flushScheduler = new FlushScheduler(scheduler, new Callable<Boolean>() {
+        public Boolean call() {
+            return processHeartbeatQueue();
+        }
+    });
+    private static final int maxHeartbeatsPerCommand = 1000;
+    private static final int heartbeatTimeoutSeconds = 3 * 60;
+    private static final int todayTimeoutSeconds = 60;
+
+    // only used from the CLI worker thread
+    private static final HeartbeatJsonWriter jsonWriter = new HeartbeatJsonWriter(null);
 
     public WakaTime() {
     }
@@ -99,7 +108,10 @@ public class WakaTime implements ApplicationComponent {
         setupConfigs();
         setLoggingLevel();
         setupStatusBar();
+        ConfigWatcher.start();
         checkCli();
+        replayJournal();
+        dispatcher.start();
         setupEventListeners();
         setupQueueProcessor();
     }
@@ -109,9 +121,8 @@ public class WakaTime implements ApplicationComponent {
             public void run() {
                 if (!Dependencies.isCLIInstalled()) {
                     log.info("Downloading and installing wakatime-cli...");
-                    Dependencies.installCLI();
-                    WakaTime.READY = true;
-                    log.info("Finished downloading and installing wakatime-cli.");
+                    installCli("Finished downloading and installing wakatime-cli.");
+                    return;
                 } else if (Dependencies.isCLIOld()) {
                     if (System.getenv("WAKATIME_CLI_LOCATION") != null && !System.getenv("WAKATIME_CLI_LOCATION").trim().isEmpty()) {
                         File wakatimeCLI = new File(System.getenv("WAKATIME_CLI_LOCATION"));
@@ -120,20 +131,48 @@ public class WakaTime implements ApplicationComponent {
                         }
                     } else {
                         log.info("Upgrading wakatime-cli ...");
-                        Dependencies.installCLI();
-                        WakaTime.READY = true;
-                        log.info("Finished upgrading wakatime-cli.");
+                        installCli("Finished upgrading wakatime-cli.");
+                        return;
                     }
                 } else {
                     WakaTime.READY = true;
                     log.info("wakatime-cli is up to date.");
                 }
-                Dependencies.createSymlink(Dependencies.combinePaths(Dependencies.getResourcesLocation(), "wakatime-cli"), Dependencies.getCLILocation());
-                log.debug("wakatime-cli location: " + Dependencies.getCLILocation());
+                linkCli();
             }
         });
     }
 
+    /**
+     * Downloads wakatime-cli in a background task, showing its progress in the status bar.
+     */
+    private static void installCli(final String finishedMessage) {
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            public void run() {
+                ProgressManager.getInstance().run(new Task.Backgroundable(null, "Installing wakatime-cli", true) {
+                    public void run(@NotNull ProgressIndicator indicator) {
+                        if (Dependencies.installCLI(indicator)) {
+                            log.info(finishedMessage);
+                        } else {
+                            log.warn("Unable to install wakatime-cli, will try again on next start.");
+                        }
+                        WakaTime.READY = true;
+                        linkCli();
+                    }
+                });
+            }
+        });
+    }
+
+    private static void linkCli() {
+        Dependencies.createSymlink(Dependencies.combinePaths(Dependencies.getResourcesLocation(), "wakatime-cli"), Dependencies.getCLILocation());
+        log.debug("wakatime-cli location: " + Dependencies.getCLILocation());
+    }
+
+    private void replayJournal() {
+        heartbeatsQueue.addAll(HeartbeatJournal.open());
+    }
+
     private void setupEventListeners() {
         ApplicationManager.getApplication().invokeLater(new Runnable(){
             public void run() {
@@ -155,6 +194,15 @@ public class WakaTime implements ApplicationComponent {
                 // caret moved
                 EditorFactory.getInstance().getEventMulticaster().addCaretListener(new CustomCaretListener(), disposable);
 
+                // file deleted, moved or renamed
+                connection.subscribe(VirtualFileManager.VFS_CHANGES, new CustomBulkFileListener());
+
+                // project closed
+                connection.subscribe(ProjectManager.TOPIC, new CustomProjectManagerListener());
+
+                // config file changed
+                connection.subscribe(ConfigChangeListener.TOPIC, new CustomConfigChangeListener());
+
                 // compiling
                 // connection.subscribe(BuildManagerListener.TOPIC, new CustomBuildManagerListener());
                 // connection.subscribe(CompilerTopics.COMPILATION_STATUS, new CustomBuildManagerListener());
@@ -163,13 +211,7 @@ public class WakaTime implements ApplicationComponent {
     }
 
     private void setupQueueProcessor() {
-        final Runnable handler = new Runnable() {
-            public void run() {
-                processHeartbeatQueue();
-            }
-        };
-        long delay = queueTimeoutSeconds;
-        scheduledFixture = scheduler.scheduleAtFixedRate(handler, delay, delay, java.util.concurrent.TimeUnit.SECONDS);
+        flushScheduler.start();
     }
 
     private static void checkDebug() {
@@ -187,12 +229,16 @@ public class WakaTime implements ApplicationComponent {
         try {
             connection.disconnect();
         } catch(Exception e) { }
+        ConfigWatcher.stop();
         try {
-            scheduledFixture.cancel(true);
+            flushScheduler.stop();
         } catch (Exception e) { }
+        dispatcher.shutdown();
 
         // make sure to send all heartbeats before exiting
         processHeartbeatQueue();
+        CliWorker.shutdown();
+        HeartbeatJournal.close();
     }
 
     public static void checkApiKey() {
@@ -218,11 +264,15 @@ public class WakaTime implements ApplicationComponent {
         });
     }
 
-    public static BigDecimal getCurrentTimestamp() {
-        return new BigDecimal(String.valueOf(System.currentTimeMillis() / 1000.0)).setScale(4, BigDecimal.ROUND_HALF_UP);
+    public static void appendHeartbeat(final VirtualFile file, final Project project, final boolean isWrite, @Nullable final LineStats lineStats) {
+        appendHeartbeat(file, project, isWrite, lineStats, false);
     }
 
-    public static void appendHeartbeat(final VirtualFile file, final Project project, final boolean isWrite, @Nullable final LineStats lineStats) {
+    /**
+     * Same as above, but a forced heartbeat is never dropped by the throttle, for heartbeats carrying
+     * line changes which would otherwise be lost.
+     */
+    public static void appendHeartbeat(final VirtualFile file, final Project project, final boolean isWrite, @Nullable final LineStats lineStats, final boolean force) {
         checkDebug();
 
         if (!shouldLogFile(file)) return;
@@ -233,23 +283,12 @@ public class WakaTime implements ApplicationComponent {
             return;
         }
 
-        if (WakaTime.READY) {
-            updateStatusBarText();
-            if (project != null) {
-                StatusBar statusbar = WindowManager.getInstance().getStatusBar(project);
-                if (statusbar != null) statusbar.updateWidget("WakaTime");
-            }
-        }
-
-        final BigDecimal time = WakaTime.getCurrentTimestamp();
-        if (!isWrite && filePath.equals(WakaTime.lastFile) && !enoughTimePassed(time)) {
+        final long time = Timestamps.nowMicros();
+        final String projectName = project != null ? project.getName() : null;
+        if (!throttle.tryAcquire(projectName, filePath, isWrite || force, Timestamps.toMillis(time))) {
             return;
         }
 
-        WakaTime.lastFile = filePath;
-        WakaTime.lastTime = time;
-
-        final String projectName = project != null ? project.getName() : null;
         final String language = WakaTime.getLanguage(file);
 
         String localFile = null;
@@ -264,35 +303,41 @@ public class WakaTime implements ApplicationComponent {
                 return;
             }
         }
-        final String localFilePath = localFile;
-        final Integer humanLineChanges = popHumanLineChanges(filePath);
+        FileActivity.LineChanges lineChanges = popLineChanges(file);
 
-        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-            public void run() {
-                Heartbeat h = new Heartbeat();
-                h.entity = filePath;
-                h.timestamp = time;
-                h.isWrite = isWrite;
-                h.isUnsavedFile = !file.exists();
-                h.project = projectName;
-                h.language = language;
-                h.isBuilding = WakaTime.isBuilding;
-                if (lineStats != null) {
-                    h.lineCount = lineStats.lineCount;
-                    h.lineNumber = lineStats.lineNumber;
-                    h.cursorPosition = lineStats.cursorPosition;
-                }
-                h.humanLineChanges = humanLineChanges;
+        if (!dispatcher.publish(file, filePath, time, isWrite, WakaTime.isBuilding, projectName, language, localFile, lineStats, lineChanges)) {
+            // the dispatcher is full, keep the line changes for the next heartbeat of this file
+            if (lineChanges != null) restoreLineChanges(file, lineChanges);
+            if (localFile != null && !new File(localFile).delete()) log.debug("Unable to delete temp file " + localFile);
+        }
+    }
 
-                if (localFilePath != null) {
-                    h.localFile = localFilePath;
-                }
+    /**
+     * Called on the dispatcher thread with heartbeats built from published events.
+     */
+    private static void queueHeartbeats(List<Heartbeat> heartbeats) {
+        HeartbeatJournal.appendAll(heartbeats);
+        heartbeatsQueue.addAll(heartbeats);
+
+        boolean isWrite = false;
+        boolean isBuilding = false;
+        for (Heartbeat h : heartbeats) {
+            isWrite |= h.isWrite;
+            isBuilding |= h.isBuilding;
+        }
+        flushScheduler.onHeartbeatQueued(isWrite, heartbeatsQueue.size(), heartbeatsQueue.getEstimatedBytes());
 
-                heartbeatsQueue.add(h);
+        if (isBuilding) setBuildTimeout();
+    }
 
-                if (WakaTime.isBuilding) setBuildTimeout();
-            }
-        });
+    /**
+     * Cheap check whether a non-write heartbeat for the file would get past the throttle, so callers can
+     * skip collecting line stats for heartbeats which would be dropped anyway.
+     */
+    public static boolean shouldSendHeartbeat(final VirtualFile file, final Project project, long timeMillis) {
+        if (!shouldLogFile(file)) return false;
+        String projectName = project != null ? project.getName() : null;
+        return throttle.wouldAccept(projectName, file.getPath(), timeMillis);
     }
 
     private static void setBuildTimeout() {
@@ -312,18 +357,17 @@ public class WakaTime implements ApplicationComponent {
         }, 10, TimeUnit.SECONDS);
     }
 
-    private static void processHeartbeatQueue() {
-        if (!WakaTime.READY) return;
-        if (pluginString() == null) return;
+    /**
+     * Sends all queued heartbeats, returning false when the queue was empty.
+     */
+    private static boolean processHeartbeatQueue() {
+        heartbeatsQueue.reportOverflow();
+        if (!WakaTime.READY) return heartbeatsQueue.size() > 0;
+        if (pluginString() == null) return heartbeatsQueue.size() > 0;
 
         checkApiKey();
 
-        // get single heartbeat from queue
-        Heartbeat heartbeat = heartbeatsQueue.poll();
-        if (heartbeat == null)
-            return;
-
-        // get all extra heartbeats from queue
+        // get all heartbeats from queue
         ArrayList<Heartbeat> extraHeartbeats = new ArrayList<>();
         while (true) {
             Heartbeat h = heartbeatsQueue.poll();
@@ -331,48 +375,61 @@ public class WakaTime implements ApplicationComponent {
                 break;
             extraHeartbeats.add(h);
         }
+        if (extraHeartbeats.isEmpty())
+            return false;
 
-        sendHeartbeat(heartbeat, extraHeartbeats);
+        // merge redundant heartbeats for the same entity before building the payload, each one is
+        // acknowledged together with whichever chunk holds the heartbeat it was merged into
+        List<Heartbeat> coalesced = HeartbeatCoalescer.coalesce(extraHeartbeats, FREQUENCY_MICROS);
+        if (coalesced.size() > 0)
+            log.debug("Coalesced " + coalesced.size() + " redundant heartbeats");
+        Heartbeat.release(coalesced);
+
+        // split large backlogs into several commands, sending the first heartbeat of each as command
+        // line arguments and the rest as extra heartbeats
+        for (int start = 0; start < extraHeartbeats.size(); start += maxHeartbeatsPerCommand) {
+            int end = Math.min(start + maxHeartbeatsPerCommand, extraHeartbeats.size());
+            Heartbeat heartbeat = extraHeartbeats.get(start);
+            ArrayList<Heartbeat> chunk = new ArrayList<>(extraHeartbeats.subList(start + 1, end));
+            CliWorker.sendHeartbeats(heartbeat, chunk);
+        }
+        return true;
     }
 
-    private static void sendHeartbeat(final Heartbeat heartbeat, final ArrayList<Heartbeat> extraHeartbeats) {
+    /**
+     * Runs wakatime-cli for one batch of heartbeats and returns true when the CLI accepted them, either
+     * by sending them or by saving them to its own offline queue.
+     */
+    static boolean sendHeartbeat(final Heartbeat heartbeat, final ArrayList<Heartbeat> extraHeartbeats) {
         final String[] cmds = buildCliCommand(heartbeat, extraHeartbeats);
         if (cmds.length == 0) {
-            return;
+            return false;
         }
         log.debug("Executing CLI: " + Arrays.toString(obfuscateKey(cmds)));
-        try {
-            Process proc = Runtime.getRuntime().exec(cmds);
-            if (extraHeartbeats.size() > 0) {
-                String json = toJSON(extraHeartbeats);
-                log.debug(json);
-                try {
-                    BufferedWriter stdin = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream()));
-                    stdin.write(json);
-                    stdin.write("\n");
-                    try {
-                        stdin.flush();
-                        stdin.close();
-                    } catch (IOException e) { /* ignored because wakatime-cli closes pipe after receiving \n */ }
-                } catch (IOException e) {
-                    warnException(e);
+        ProcessSupervisor.StdinWriter stdinWriter = null;
+        if (extraHeartbeats.size() > 0) {
+            stdinWriter = new ProcessSupervisor.StdinWriter() {
+                public void write(OutputStream stdin) throws IOException {
+                    log.debug("Writing " + extraHeartbeats.size() + " extra heartbeats to wakatime-cli");
+                    jsonWriter.reset(stdin);
+                    jsonWriter.writeArray(extraHeartbeats);
+                    jsonWriter.writeAscii("\n");
+                    jsonWriter.flush();
+                    if (log.isDebugEnabled())
+                        log.debug("Wrote " + jsonWriter.getBytesWritten() + " bytes of extra heartbeats");
                 }
-            }
+            };
+        }
+        try {
+            ProcessSupervisor.Result result = ProcessSupervisor.run(cmds, stdinWriter, heartbeatTimeoutSeconds);
             if (WakaTime.DEBUG) {
-                BufferedReader stdout = new BufferedReader(new
-                        InputStreamReader(proc.getInputStream()));
-                BufferedReader stderr = new BufferedReader(new
-                        InputStreamReader(proc.getErrorStream()));
-                proc.waitFor();
-                String s;
-                while ((s = stdout.readLine()) != null) {
-                    log.debug(s);
-                }
-                while ((s = stderr.readLine()) != null) {
-                    log.debug(s);
-                }
-                log.debug("Command finished with return value: " + proc.exitValue());
+                if (!result.stdout.isEmpty()) log.debug(result.stdout);
+                if (!result.stderr.isEmpty()) log.debug(result.stderr);
             }
+            log.debug("Command finished with return value: " + result.exitCode);
+            return !result.timedOut && isAcceptedExitCode(result.exitCode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             warnException(e);
             if (Dependencies.isWindows() && e.toString().contains("Access is denied")) {
@@ -381,97 +438,12 @@ public class WakaTime implements ApplicationComponent {
                 } catch (Exception ex) { }
             }
         }
+        return false;
     }
 
-    private static String toJSON(ArrayList<Heartbeat> extraHeartbeats) {
-        StringBuffer json = new StringBuffer();
-        json.append("[");
-        boolean first = true;
-        for (Heartbeat heartbeat : extraHeartbeats) {
-            StringBuffer h = new StringBuffer();
-            h.append("{\"entity\":\"");
-            h.append(jsonEscape(heartbeat.entity));
-            h.append("\",\"timestamp\":");
-            h.append(heartbeat.timestamp.toPlainString());
-            h.append(",\"is_write\":");
-            h.append(heartbeat.isWrite.toString());
-            if (heartbeat.lineCount != null) {
-                h.append(",\"lines\":");
-                h.append(heartbeat.lineCount);
-            }
-            if (heartbeat.lineNumber != null) {
-                h.append(",\"lineno\":");
-                h.append(heartbeat.lineNumber);
-            }
-            if (heartbeat.cursorPosition != null) {
-                h.append(",\"cursorpos\":");
-                h.append(heartbeat.cursorPosition);
-            }
-            if (heartbeat.humanLineChanges != null && heartbeat.humanLineChanges != 0) {
-                h.append(",\"human_line_changes\":");
-                h.append(heartbeat.humanLineChanges);
-            }
-            if (heartbeat.isUnsavedFile) {
-                h.append(",\"is_unsaved_entity\":true");
-            }
-            if (heartbeat.isBuilding) {
-                h.append(",\"category\":\"building\"");
-            }
-            if (heartbeat.project != null) {
-                h.append(",\"alternate_project\":\"");
-                h.append(jsonEscape(heartbeat.project));
-                h.append("\"");
-            }
-            if (heartbeat.language != null) {
-                h.append(",\"language\":\"");
-                h.append(jsonEscape(heartbeat.language));
-                h.append("\"");
-            }
-            if (heartbeat.localFile != null) {
-                h.append(",\"local_file\":\"");
-                h.append(jsonEscape(heartbeat.localFile));
-                h.append("\"");
-            }
-            h.append("}");
-            if (!first)
-                json.append(",");
-            json.append(h);
-            first = false;
-        }
-        json.append("]");
-        return json.toString();
-    }
-
-    private static String jsonEscape(String s) {
-        if (s == null)
-            return null;
-        StringBuffer escaped = new StringBuffer();
-        final int len = s.length();
-        for (int i = 0; i < len; i++) {
-            char c = s.charAt(i);
-            switch(c) {
-                case '\\': escaped.append("\\\\"); break;
-                case '"': escaped.append("\\\""); break;
-                case '\b': escaped.append("\\b"); break;
-                case '\f': escaped.append("\\f"); break;
-                case '\n': escaped.append("\\n"); break;
-                case '\r': escaped.append("\\r"); break;
-                case '\t': escaped.append("\\t"); break;
-                default:
-                    boolean isUnicode = (c >= '\u0000' && c <= '\u001F') || (c >= '\u007F' && c <= '\u009F') || (c >= '\u2000' && c <= '\u20FF');
-                    if (isUnicode){
-                        escaped.append("\\u");
-                        String hex = Integer.toHexString(c);
-                        for (int k = 0; k < 4 - hex.length(); k++) {
-                            escaped.append('0');
-                        }
-                        escaped.append(hex.toUpperCase());
-                    } else {
-                        escaped.append(c);
-                    }
-            }
-        }
-        return escaped.toString();
+    private static boolean isAcceptedExitCode(int exitCode) {
+        // 102 (api error) and 112 (rate limited) mean wakatime-cli saved the heartbeats to its offline queue
+        return exitCode == 0 || exitCode == 102 || exitCode == 112;
     }
 
     private static String[] buildCliCommand(Heartbeat heartbeat, ArrayList<Heartbeat> extraHeartbeats) {
@@ -490,27 +462,35 @@ public class WakaTime implements ApplicationComponent {
             cmds.add(heartbeat.localFile);
         }
         cmds.add("--time");
-        cmds.add(heartbeat.timestamp.toPlainString());
+        cmds.add(Timestamps.format(heartbeat.timestamp));
         String apiKey = ConfigFile.getApiKey();
         if (!apiKey.equals("")) {
             cmds.add("--key");
             cmds.add(apiKey);
         }
-        if (heartbeat.lineCount != null) {
+        if (heartbeat.lineCount != Heartbeat.NONE) {
             cmds.add("--lines-in-file");
-            cmds.add(heartbeat.lineCount.toString());
+            cmds.add(Integer.toString(heartbeat.lineCount));
         }
-        if (heartbeat.lineNumber != null) {
+        if (heartbeat.lineNumber != Heartbeat.NONE) {
             cmds.add("--lineno");
-            cmds.add(heartbeat.lineNumber.toString());
+            cmds.add(Integer.toString(heartbeat.lineNumber));
         }
-        if (heartbeat.cursorPosition != null) {
+        if (heartbeat.cursorPosition != Heartbeat.NONE) {
             cmds.add("--cursorpos");
-            cmds.add(heartbeat.cursorPosition.toString());
+            cmds.add(Integer.toString(heartbeat.cursorPosition));
         }
-        if (heartbeat.humanLineChanges != null && heartbeat.humanLineChanges != 0) {
+        if (heartbeat.humanLineChanges != 0) {
             cmds.add("--human-line-changes");
-            cmds.add(heartbeat.humanLineChanges.toString());
+            cmds.add(Integer.toString(heartbeat.humanLineChanges));
+        }
+        if (heartbeat.lineAdditions != 0) {
+            cmds.add("--line-additions");
+            cmds.add(Integer.toString(heartbeat.lineAdditions));
+        }
+        if (heartbeat.lineDeletions != 0) {
+            cmds.add("--line-deletions");
+            cmds.add(Integer.toString(heartbeat.lineDeletions));
         }
         if (heartbeat.project != null) {
             cmds.add("--alternate-project");
@@ -580,10 +560,6 @@ public class WakaTime implements ApplicationComponent {
         return null;
     }
 
-    public static boolean enoughTimePassed(BigDecimal currentTime) {
-        return WakaTime.lastTime.add(FREQUENCY).compareTo(currentTime) < 0;
-    }
-
     public static boolean shouldLogFile(VirtualFile file) {
         if (file == null || file.getUrl().startsWith("mock://")) {
             return false;
@@ -609,22 +585,40 @@ public class WakaTime implements ApplicationComponent {
         WakaTime.DEBUG = debug != null && debug.trim().equals("true");
         String metrics = ConfigFile.get("settings", "metrics", false);
         WakaTime.METRICS = metrics != null && metrics.trim().equals("true");
+        heartbeatsQueue.setCapacity(getIntSetting("heartbeat_queue_capacity", HeartbeatQueue.DEFAULT_CAPACITY));
+        flushScheduler.configure(
+                getIntSetting("heartbeat_flush_interval", FlushScheduler.DEFAULT_INTERVAL_SECONDS),
+                getIntSetting("heartbeat_flush_max_interval", FlushScheduler.DEFAULT_MAX_INTERVAL_SECONDS),
+                getIntSetting("heartbeat_flush_write_delay", FlushScheduler.DEFAULT_WRITE_DELAY_SECONDS),
+                getIntSetting("heartbeat_flush_batch_size", FlushScheduler.DEFAULT_BATCH_SIZE),
+                getIntSetting("heartbeat_flush_batch_bytes", FlushScheduler.DEFAULT_BATCH_BYTES));
+    }
+
+    private static int getIntSetting(String key, int defaultValue) {
+        String value = ConfigFile.get("settings", key, false);
+        if (value == null || value.trim().equals("")) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + key + " in config file: " + value);
+            return defaultValue;
+        }
     }
 
     public static void setupStatusBar() {
+        setupStatusBar(false);
+    }
+
+    /**
+     * Same as above, but refreshes today's coding time even when it was fetched less than a minute ago,
+     * for when the stats shown may belong to another account.
+     */
+    public static void setupStatusBar(boolean forceRefresh) {
         String statusBarVal = ConfigFile.get("settings", "status_bar_enabled", false);
         WakaTime.STATUS_BAR = statusBarVal == null || !statusBarVal.trim().equals("false");
         if (WakaTime.READY) {
-            try {
-                updateStatusBarText();
-                Project project = getCurrentProject();
-                if (project == null) return;
-                StatusBar statusbar = WindowManager.getInstance().getStatusBar(project);
-                if (statusbar == null) return;
-                statusbar.updateWidget("WakaTime");
-            } catch (Exception e) {
-                warnException(e);
-            }
+            TodayStatsCache.refresh(forceRefresh);
+            StatusBarUpdater.requestUpdate();
         }
     }
 
@@ -694,85 +688,32 @@ public class WakaTime implements ApplicationComponent {
     }
 
     public static LineStats getLineStats(@Nullable Document document, @Nullable Editor editor) {
-        if (editor == null && document != null) {
-            Project project = WakaTime.getProject(document);
-            if (project != null && project.isInitialized()) {
-                editor = FileEditorManager.getInstance(project).getSelectedTextEditor();
-            }
+        if (document == null && editor != null) {
+            document = editor.getDocument();
         }
+        if (document == null) return new LineStats();
 
-        if (editor != null) {
-            if (document == null) {
-                document = editor.getDocument();
-            }
-            for (Caret caret : editor.getCaretModel().getAllCarets()) {
-                LineStats lineStats = new LineStats();
-                if (document != null) {
-                    lineStats.lineCount = document.getLineCount();
-                }
-                LogicalPosition position = caret.getLogicalPosition();
-                lineStats.lineNumber = position.line + 1;
-                lineStats.cursorPosition = position.column + 1;
-                if (lineStats.isOK()) {
-                    saveLineStats(document, lineStats, true);
-                    return lineStats;
-                }
-            }
+        LineStats lineStats = LineStatsTracker.getSnapshot(document, editor);
+        if (lineStats == null) {
+            lineStats = new LineStats();
+            lineStats.lineCount = document.getLineCount();
         }
-
-        return WakaTime.getLineStats(document);
+        saveLineStats(document, lineStats);
+        return lineStats;
     }
 
     public static LineStats getLineStats(@Nullable Document document) {
-        if (document != null) {
-            LineStats lineStats = new LineStats();
-            lineStats.lineCount = document.getLineCount();
-            Caret caret = CommonDataKeys.CARET.getData(DataManager.getInstance().getDataContext());
-            if (caret != null) {
-                LogicalPosition position = caret.getLogicalPosition();
-                lineStats.lineNumber = position.line + 1;
-                lineStats.cursorPosition = position.column + 1;
-            }
-            saveLineStats(document, lineStats, true);
-            return lineStats;
-        }
-
-        return WakaTime.getLineStats(WakaTime.getFile(document));
+        return WakaTime.getLineStats(document, null);
     }
 
     public static LineStats getLineStats(@Nullable VirtualFile file) {
-        Caret caret = CommonDataKeys.CARET.getData(DataManager.getInstance().getDataContext());
-        LineStats lineStats = new LineStats();
-        if (file != null) {
-            Document document = FileDocumentManager.getInstance().getDocument(file);
-            if (document != null) {
-                lineStats.lineCount = document.getLineCount();
-            }
-        }
-
-        if (caret != null) {
-            LogicalPosition position = caret.getLogicalPosition();
-            lineStats.lineNumber = position.line + 1;
-            lineStats.cursorPosition = position.column + 1;
-            if (lineStats.lineCount == null) {
-                Editor editor = caret.getEditor();
-                if (editor != null) {
-                    Document document = editor.getDocument();
-                    if (document != null) {
-                        lineStats.lineCount = document.getLineCount();
-                    }
-                }
-            }
-        }
-
-        if (lineStats.hasLineCount()) {
-            saveLineStats(file, lineStats, true);
-            return lineStats;
-        }
-
         if (file == null) return new LineStats();
 
-        return WakaTime.lineStatsCache.get(file.getPath());
+        Document document = FileDocumentManager.getInstance().getDocument(file);
+        if (document != null) return WakaTime.getLineStats(document, null);
+
+        FileActivity activity = FileActivity.find(file);
+        return activity != null ? activity.getLineStats() : null;
     }
 
     public static void saveLineStats(Document document, LineStats lineStats) {
@@ -781,120 +722,90 @@ public class WakaTime implements ApplicationComponent {
     }
 
     public static void saveLineStats(@Nullable VirtualFile file, LineStats lineStats) {
-        saveLineStats(file, lineStats, false);
-    }
-
-    public static void saveLineStats(Document document, LineStats lineStats, boolean updateLineChanges) {
-        VirtualFile file = WakaTime.getFile(document);
-        saveLineStats(file, lineStats, updateLineChanges);
-    }
-
-    public static synchronized void saveLineStats(@Nullable VirtualFile file, LineStats lineStats, boolean updateLineChanges) {
         if (file == null) return;
         if (lineStats == null || !lineStats.hasLineCount()) return;
         lineStats.updatedAt = System.currentTimeMillis();
-        if (updateLineChanges) {
-            updateLineChanges(file, lineStats);
-        }
-        WakaTime.lineStatsCache.put(file.getPath(), lineStats);
+        FileActivity.get(file).saveLineStats(lineStats);
     }
 
-    private static synchronized void updateLineChanges(@NotNull VirtualFile file, @NotNull LineStats lineStats) {
-        String filePath = file.getPath();
-        long now = lineStats.updatedAt != null ? lineStats.updatedAt : System.currentTimeMillis();
-        LineStats previous = WakaTime.lineStatsCache.get(filePath);
-        if (previous == null || previous.lineCount == null) {
-            return;
-        }
-
-        int delta = lineStats.lineCount - previous.lineCount;
-
-        // prevent counting large copy/paste as human typed lines of code
-        if (delta > 50 && previous.updatedAt != null && Math.abs(now - previous.updatedAt) < 60000) {
-            delta = 0;
-        }
-
-        if (delta == 0) return;
+    @Nullable
+    private static FileActivity.LineChanges popLineChanges(@NotNull VirtualFile file) {
+        FileActivity activity = FileActivity.find(file);
+        return activity != null ? activity.popLineChanges() : null;
+    }
 
-        Integer current = WakaTime.humanLineChanges.get(filePath);
-        WakaTime.humanLineChanges.put(filePath, (current != null ? current : 0) + delta);
+    private static void restoreLineChanges(@NotNull VirtualFile file, @NotNull FileActivity.LineChanges lineChanges) {
+        FileActivity.get(file).restoreLineChanges(lineChanges);
     }
 
-    private static synchronized Integer popHumanLineChanges(@NotNull String filePath) {
-        Integer lineChanges = WakaTime.humanLineChanges.remove(filePath);
-        Boolean hasHumanTyping = WakaTime.filesWithHumanTyping.remove(filePath);
-        if (!Boolean.TRUE.equals(hasHumanTyping)) return 0;
-        return lineChanges;
+    /**
+     * Sends line changes typed into the file which were not sent yet, before its record is forgotten.
+     */
+    public static void sendPendingLineChanges(@NotNull VirtualFile file, @Nullable Project project) {
+        FileActivity activity = FileActivity.find(file);
+        if (activity == null || !activity.hasLineChanges()) return;
+        if (project == null) project = getCurrentProject();
+        appendHeartbeat(file, project, false, getLineStats(file), true);
     }
 
-    public static synchronized void markFileWithHumanTyping(@NotNull VirtualFile file) {
-        WakaTime.filesWithHumanTyping.put(file.getPath(), true);
+    public static void markFileWithHumanTyping(@NotNull VirtualFile file) {
+        FileActivity.get(file).markHumanTyping();
     }
 
     public static void openDashboardWebsite() {
         BrowserUtil.browse(ConfigFile.getDashboardUrl());
     }
 
-    private static String todayText = "initialized";
-    private static BigDecimal todayTextTime = new BigDecimal(0);
-
     public static String getStatusBarText() {
         if (!WakaTime.READY) return "";
         if (!WakaTime.STATUS_BAR) return "";
-        return todayText;
+        TodayStats stats = TodayStatsCache.get();
+        if (stats == null) return "initialized";
+        return " " + stats.text;
     }
 
+    /**
+     * Refreshes today's stats in the background. The status bar is updated when they change.
+     */
     public static void updateStatusBarText() {
+        TodayStatsCache.refresh(false);
+    }
 
-        // rate limit, to prevent from fetching Today's stats too frequently
-        BigDecimal now = getCurrentTimestamp();
-        if (todayTextTime.add(new BigDecimal(60)).compareTo(now) > 0) return;
-        todayTextTime = getCurrentTimestamp();
+    @Nullable
+    static TodayStats fetchTodayStats() {
+        ArrayList<String> cmds = new ArrayList<String>();
+        cmds.add(Dependencies.getCLILocation());
+        cmds.add("--today");
+        cmds.add("--output");
+        cmds.add("json");
 
-        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-            public void run() {
-                ArrayList<String> cmds = new ArrayList<String>();
-                cmds.add(Dependencies.getCLILocation());
-                cmds.add("--today");
-
-                String apiKey = ConfigFile.getApiKey();
-                if (!apiKey.equals("")) {
-                    cmds.add("--key");
-                    cmds.add(apiKey);
-                }
+        String apiKey = ConfigFile.getApiKey();
+        if (!apiKey.equals("")) {
+            cmds.add("--key");
+            cmds.add(apiKey);
+        }
 
-                log.debug("Executing CLI: " + Arrays.toString(obfuscateKey(cmds.toArray(new String[cmds.size()]))));
+        log.debug("Executing CLI: " + Arrays.toString(obfuscateKey(cmds.toArray(new String[cmds.size()]))));
 
+        try {
+            ProcessSupervisor.Result result = ProcessSupervisor.run(cmds.toArray(new String[cmds.size()]), null, todayTimeoutSeconds);
+            log.debug("Command finished with return value: " + result.exitCode);
+            if (result.timedOut || result.exitCode != 0) return null;
+            TodayStats stats = TodayStats.parse(result.getOutput(), System.currentTimeMillis());
+            if (stats == null) log.debug("Unable to parse today's stats: " + result.getOutput());
+            return stats;
+        } catch (InterruptedException interruptedException) {
+            warnException(interruptedException);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            warnException(e);
+            if (Dependencies.isWindows() && e.toString().contains("Access is denied")) {
                 try {
-                    Process proc = Runtime.getRuntime().exec(cmds.toArray(new String[cmds.size()]));
-                    BufferedReader stdout = new BufferedReader(new
-                            InputStreamReader(proc.getInputStream()));
-                    BufferedReader stderr = new BufferedReader(new
-                            InputStreamReader(proc.getErrorStream()));
-                    proc.waitFor();
-                    ArrayList<String> output = new ArrayList<String>();
-                    String s;
-                    while ((s = stdout.readLine()) != null) {
-                        output.add(s);
-                    }
-                    while ((s = stderr.readLine()) != null) {
-                        output.add(s);
-                    }
-                    log.debug("Command finished with return value: " + proc.exitValue());
-                    todayText = " " + String.join("", output);
-                    todayTextTime = getCurrentTimestamp();
-                } catch (InterruptedException interruptedException) {
-                    warnException(interruptedException);
-                } catch (Exception e) {
-                    warnException(e);
-                    if (Dependencies.isWindows() && e.toString().contains("Access is denied")) {
-                        try {
-                            Messages.showWarningDialog("Microsoft Defender is blocking WakaTime. Please allow " + Dependencies.getCLILocation() + " to run so WakaTime can upload code stats to your dashboard.", "Error");
-                        } catch (Exception ex) { }
-                    }
-                }
+                    Messages.showWarningDialog("Microsoft Defender is blocking WakaTime. Please allow " + Dependencies.getCLILocation() + " to run so WakaTime can upload code stats to your dashboard.", "Error");
+                } catch (Exception ex) { }
             }
-        });
+        }
+        return null;
     }
 
     private static String obfuscateKey(String key) {
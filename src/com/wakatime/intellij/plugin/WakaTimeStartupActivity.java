@@ -1,5 +1,6 @@
 package com.wakatime.intellij.plugin;
 
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
 import org.jetbrains.annotations.NotNull;
@@ -9,5 +10,8 @@ public class WakaTimeStartupActivity implements StartupActivity.Background {
     @Override
     public void runActivity(@NotNull Project project) {
         WakaTime.checkApiKey();
+
+        // file editor events are only published on each project's message bus
+        project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new CustomFileEditorManagerListener());
     }
 }
\ No newline at end of file